@@ -0,0 +1,659 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.awt.EventQueue;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.openstreetmap.gui.jmapviewer.FeatureAdapter;
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
+import org.openstreetmap.gui.jmapviewer.OsmTileLoader;
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+
+/**
+ * Base class for tile loaders reading their tiles from a {@link TileArchive}.
+ *
+ * Jobs are run on the {@link TileLoaderExecutor}, so {@link TileJob#submit(boolean)}
+ * returns immediately and the listener is notified from a loader or decoder thread.
+ *
+ * Jobs are ordered by generation: a new generation starts each time the layer reports that the
+ * map view moved, see {@link #viewChanged(Bounds)}. The newest generation is loaded first, and
+ * within a generation the tiles of the zoom level requested first, i.e. the zoom level being
+ * displayed, come before the tiles of other zoom levels. When the view moves, the waiting jobs
+ * whose tiles are no longer in view are dropped and the reads of such tiles are interrupted;
+ * their tiles are requested again by a later repaint if they come back into view. This way a
+ * fast pan only loads what is on screen at the end.
+ *
+ * Requests for a tile that is already being loaded, e.g. by another layer showing the same
+ * file, are not loaded again: they wait for the first request and share its query and its
+ * decoded image.
+ *
+ * If the listener is a {@link TilePrefetcher.TileSupplier}, the tiles around those requested at the
+ * displayed zoom level are read ahead once the first repaint of a view has requested its tiles, see {@link TilePrefetcher}.
+ *
+ * When a job starts, it takes along the other waiting jobs of the same zoom level and
+ * reads all their tiles with one range query, instead of one query per tile. Tiles found
+ * in the {@link TileDataCache} are not read from the database at all, nor are tiles that the
+ * {@link TileExistenceIndex} of the archive or the {@link MissingTileCache} of the loader knows
+ * to be missing.
+ *
+ * The loader threads only read the tiles; the images are decoded by the {@link TileDecoder}, and
+ * the listener is notified from a decoder thread once a tile is decoded. Tiles with the same bytes
+ * as a tile decoded before get its image from the {@link SharedImageCache} instead, and tiles of a
+ * single colour get the image of the {@link SolidTileImages} for that colour.
+ */
+public abstract class AbstractSqliteTileLoader extends OsmTileLoader {
+    private static final Logger LOG = FeatureAdapter.getLogger(AbstractSqliteTileLoader.class.getCanonicalName());
+
+    /** Maximum number of tiles read by one range query, 1 to read every tile on its own. */
+    public static final IntegerProperty BATCH_SIZE = new IntegerProperty("mbtiles.loader.batch", 64);
+
+    /**
+     * A range query is only used if the tiles requested fill at least this share of the
+     * rectangle around them; scattered tiles are read one by one.
+     */
+    private static final int MAX_RANGE_PER_TILE = 4;
+
+    protected final TileArchive archive;
+    private final String archivePath;
+    private final TileDataCache dataCache;
+    private final SharedImageCache sharedImages;
+    private final boolean solidTiles;
+    private final boolean compatibleImages;
+    private final int batchSize;
+    /** Tiles recently found missing, {@code null} if disabled. */
+    private final MissingTileCache missingTiles;
+    /** Jobs submitted whose tile has not been taken by a batch yet, guarded by itself. */
+    private final Set<SqliteTileJob> pending = new LinkedHashSet<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /** Jobs waiting for the job loading the same tile, by file and tile position, guarded by itself. */
+    private static final Map<String, List<SqliteTileJob>> IN_FLIGHT = new HashMap<>();
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    /** The current generation, guarded by the class. */
+    private static long generation;
+    /** Tiles being read from the archive, by the thread reading them, guarded by itself. */
+    private final Map<Thread, List<SqliteTileJob>> reading = new HashMap<>();
+    /** The generation and zoom level of the first tile requested from this loader in that generation, guarded by pending. */
+    private long zoomGeneration = -1;
+    private int generationZoom;
+    /** The tiles requested at that zoom level in that generation, as minimum x and y and maximum x and y, guarded by pending. */
+    private int[] viewExtent;
+    /** Chooses the tiles read ahead, {@code null} if the listener cannot supply them or reading ahead is disabled. */
+    private final TilePrefetcher prefetcher;
+
+    protected AbstractSqliteTileLoader(TileLoaderListener listener, TileArchive archive) {
+        super(listener);
+        this.archive = archive;
+        this.archivePath = archive.getFile().getAbsolutePath();
+        this.dataCache = TileDataCache.getInstance();
+        this.sharedImages = SharedImageCache.getInstance();
+        this.solidTiles = SolidTileImages.ENABLED.get();
+        this.compatibleImages = TileDecoder.COMPATIBLE.get();
+        this.batchSize = Math.max(1, BATCH_SIZE.get());
+        this.prefetcher = listener instanceof TilePrefetcher.TileSupplier ? TilePrefetcher.fromPreferences() : null;
+        int missingTtl = MissingTileCache.TTL.get();
+        this.missingTiles = missingTtl > 0
+                ? new MissingTileCache(archive.getFile(), Math.max(1, MissingTileCache.MAX_ENTRIES.get()), missingTtl * 1000L)
+                : null;
+        if (TileExistenceIndex.ENABLED.get()) {
+            archive.requestExistenceIndex(TileExistenceIndex.MAX_BYTES.get());
+        }
+        if (TileRowidIndex.ENABLED.get()) {
+            archive.requestRowidIndex(TileRowidIndex.MAX_BYTES.get());
+        }
+    }
+
+    /**
+     * Called when the database has no data for the given tile.
+     * @param tile the missing tile
+     */
+    protected void tileNotFound(Tile tile) {
+        // by default the tile is left empty
+    }
+
+    @Override
+    public TileJob createTileLoaderJob(final Tile tile) {
+        return new SqliteTileJob(tile);
+    }
+
+    @Override
+    public boolean hasOutstandingTasks() {
+        return outstanding.get() > 0;
+    }
+
+    /**
+     * Returns the number of tiles submitted and not loaded yet.
+     * @return the number of outstanding tiles
+     */
+    public int getOutstandingCount() {
+        return outstanding.get();
+    }
+
+    /**
+     * Queues a tile to be read ahead of time, behind all tiles requested by the layer. Unlike the
+     * tiles read ahead of the view, it is not dropped when the view changes.
+     * @param tile the tile, ignored if it is loaded or being loaded already
+     */
+    public void prefetch(Tile tile) {
+        if (!tile.isLoaded() && !tile.isLoading() && !tile.hasError()) {
+            new SqliteTileJob(tile).submit(Long.MAX_VALUE, true);
+        }
+    }
+
+    /**
+     * Drops the waiting jobs of this loader and interrupts the queries running for it.
+     */
+    @Override
+    public void cancelOutstandingTasks() {
+        TileLoaderExecutor.getExecutor().getQueue().removeIf(r -> {
+            if (r instanceof SqliteTileJob && ((SqliteTileJob) r).getLoader() == this) {
+                ((SqliteTileJob) r).cancel();
+                return true;
+            }
+            return false;
+        });
+        archive.cancelRunningQueries();
+    }
+
+    /**
+     * Starts a new generation after the map view moved, so that the tiles requested from now on
+     * are loaded first. The waiting jobs of this loader whose tiles are no longer in view are
+     * dropped, and the reads of such tiles in progress are interrupted. Their tiles are given back
+     * to the layer, which requests them again if they come back into view. Tiles read ahead for
+     * an area, see {@link #prefetch(Tile)}, are kept.
+     * @param view the area now shown
+     */
+    public void viewChanged(Bounds view) {
+        long current = nextGeneration();
+        TileLoaderExecutor.dropJobs(job -> job.getLoader() == this && job.isObsolete(current, view));
+        synchronized (reading) {
+            for (Map.Entry<Thread, List<SqliteTileJob>> entry : reading.entrySet()) {
+                if (entry.getValue().stream().allMatch(job -> job.isObsolete(current, view))) {
+                    archive.cancelRunningQueries(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private static synchronized long nextGeneration() {
+        return ++generation;
+    }
+
+    private static synchronized long currentGeneration() {
+        return generation;
+    }
+
+    /**
+     * Registers the tiles the current thread is about to read, so that {@link #viewChanged(Bounds)}
+     * can interrupt the read.
+     */
+    private void startReading(List<SqliteTileJob> jobs) {
+        synchronized (reading) {
+            reading.put(Thread.currentThread(), jobs);
+        }
+    }
+
+    private void stopReading() {
+        synchronized (reading) {
+            reading.remove(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Queues the tiles around the tiles requested in a generation, behind all other jobs.
+     * Nothing is read ahead if a newer generation has started in the meantime.
+     * @param generation the generation
+     */
+    private void prefetch(long generation) {
+        int zoom;
+        int[] extent;
+        synchronized (pending) {
+            if (zoomGeneration != generation || viewExtent == null) {
+                return;
+            }
+            zoom = generationZoom;
+            extent = viewExtent.clone();
+        }
+        TilePrefetcher.TileSupplier supplier = (TilePrefetcher.TileSupplier) listener;
+        for (int[] position : prefetcher.getPositions(zoom, extent[0], extent[1], extent[2], extent[3])) {
+            Tile tile = supplier.getPrefetchTile(position[0], position[1], position[2]);
+            if (tile != null && !tile.isLoaded() && !tile.isLoading() && !tile.hasError()) {
+                new SqliteTileJob(tile).submit(generation, true);
+            }
+        }
+    }
+
+    /**
+     * Takes the given job and other pending jobs of the same zoom level out of the pending set.
+     * @param job the job that is about to run
+     * @return the jobs to load together, empty if the job was already loaded by another batch
+     */
+    private List<SqliteTileJob> takeBatch(SqliteTileJob job) {
+        synchronized (pending) {
+            if (!pending.remove(job)) {
+                return Collections.emptyList();
+            }
+            List<SqliteTileJob> batch = new ArrayList<>();
+            batch.add(job);
+            int zoom = job.tile.getZoom();
+            for (Iterator<SqliteTileJob> it = pending.iterator(); it.hasNext() && batch.size() < batchSize;) {
+                SqliteTileJob other = it.next();
+                if (other.tile.getZoom() == zoom) {
+                    batch.add(other);
+                    it.remove();
+                }
+            }
+            return batch;
+        }
+    }
+
+    private void loadBatch(List<SqliteTileJob> jobs) {
+        List<SqliteTileJob> batch = new ArrayList<>(jobs.size());
+        for (SqliteTileJob job : jobs) {
+            if (!job.startLoading()) {
+                continue;
+            }
+            ByteBuffer cached = dataCache.getBuffer(archivePath, job.tile.getZoom(), job.tile.getXtile(), job.tile.getYtile());
+            if (cached != null) {
+                job.loaded(cached);
+            } else {
+                batch.add(job);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        int zoom = batch.get(0).tile.getZoom();
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (SqliteTileJob job : batch) {
+            minX = Math.min(minX, job.tile.getXtile());
+            minY = Math.min(minY, job.tile.getYtile());
+            maxX = Math.max(maxX, job.tile.getXtile());
+            maxY = Math.max(maxY, job.tile.getYtile());
+        }
+        long area = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        if (batch.size() == 1 || area > (long) MAX_RANGE_PER_TILE * batch.size()) {
+            for (SqliteTileJob job : batch) {
+                job.load();
+            }
+            return;
+        }
+
+        // Jobs for the same position have been merged by startLoading()
+        Map<Long, SqliteTileJob> byPosition = new HashMap<>();
+        for (SqliteTileJob job : batch) {
+            byPosition.put(position(job.tile.getXtile(), job.tile.getYtile()), job);
+        }
+        // Decoding may run on this thread when the decoders are busy, so the tiles are only handed
+        // over once the range query is done and its connection is back in the pool
+        Map<SqliteTileJob, byte[]> found = new LinkedHashMap<>();
+        SQLException error = null;
+        long interrupts = archive.getInterruptCount();
+        startReading(batch);
+        try {
+            archive.readTiles(zoom, minX, minY, maxX, maxY, (x, y, data) -> {
+                SqliteTileJob job = byPosition.remove(position(x, y));
+                if (job != null) {
+                    found.put(job, data);
+                }
+            });
+        } catch (SQLException e) {
+            error = e;
+        } finally {
+            stopReading();
+        }
+        for (Map.Entry<SqliteTileJob, byte[]> entry : found.entrySet()) {
+            SqliteTileJob job = entry.getKey();
+            dataCache.put(archivePath, zoom, job.tile.getXtile(), job.tile.getYtile(), entry.getValue());
+            job.loaded(ByteBuffer.wrap(entry.getValue()));
+        }
+        if (error == null) {
+            for (SqliteTileJob job : byPosition.values()) {
+                job.loaded(null);
+            }
+            return;
+        }
+        boolean interrupted = archive.getInterruptCount() != interrupts;
+        if (!interrupted) {
+            LOG.throwing(this.getClass().getName(), "loadBatch", error);
+        }
+        for (SqliteTileJob job : byPosition.values()) {
+            if (interrupted) {
+                job.interrupted();
+            } else {
+                job.failed(error);
+            }
+        }
+    }
+
+    private static long position(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    final class SqliteTileJob implements TileJob, Comparable<SqliteTileJob> {
+        private final Tile tile;
+        private long generation;
+        private int zoomRank;
+        private long sequence;
+        private boolean prefetch;
+        /** Whether this job loads its tile for the jobs waiting in IN_FLIGHT. */
+        private boolean leader;
+
+        SqliteTileJob(Tile tile) {
+            this.tile = tile;
+        }
+
+        AbstractSqliteTileLoader getLoader() {
+            return AbstractSqliteTileLoader.this;
+        }
+
+        /**
+         * Returns whether this job was submitted before a view change and its tile is not in the new view.
+         * @param current the generation started by the view change
+         * @param view the area now shown
+         * @return {@code true} if the job can be dropped
+         */
+        boolean isObsolete(long current, Bounds view) {
+            if (generation >= current || view.crosses180thMeridian()) {
+                return false;
+            }
+            // One tile of margin, as the view is not aligned with the tiles in other projections
+            int zoom = tile.getZoom();
+            int minX = (int) (OsmMercator.MERCATOR_256.lonToX(view.getMinLon(), zoom) / 256) - 1;
+            int maxX = (int) (OsmMercator.MERCATOR_256.lonToX(view.getMaxLon(), zoom) / 256) + 1;
+            int minY = (int) (OsmMercator.MERCATOR_256.latToY(view.getMaxLat(), zoom) / 256) - 1;
+            int maxY = (int) (OsmMercator.MERCATOR_256.latToY(view.getMinLat(), zoom) / 256) + 1;
+            return tile.getXtile() < minX || tile.getXtile() > maxX || tile.getYtile() < minY || tile.getYtile() > maxY;
+        }
+
+        /**
+         * Orders jobs by priority: tiles read ahead last, newest generation first, then the zoom level
+         * displayed, then oldest first.
+         */
+        @Override
+        public int compareTo(SqliteTileJob other) {
+            if (prefetch != other.prefetch) {
+                return prefetch ? 1 : -1;
+            }
+            if (generation != other.generation) {
+                return generation > other.generation ? -1 : 1;
+            }
+            if (zoomRank != other.zoomRank) {
+                return Integer.compare(zoomRank, other.zoomRank);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public void run() {
+            List<SqliteTileJob> batch = takeBatch(this);
+            if (!batch.isEmpty()) {
+                loadBatch(batch);
+            }
+        }
+
+        private String inFlightKey() {
+            return archivePath + '/' + tile.getZoom() + '/' + tile.getXtile() + '/' + tile.getYtile();
+        }
+
+        /**
+         * Registers this job as loading its tile, unless another job is loading the same tile already.
+         * @return {@code true} if this job must load the tile, {@code false} if it will get the
+         * result of the other job
+         */
+        boolean startLoading() {
+            synchronized (IN_FLIGHT) {
+                List<SqliteTileJob> waiting = IN_FLIGHT.get(inFlightKey());
+                if (waiting != null) {
+                    waiting.add(this);
+                    return false;
+                }
+                IN_FLIGHT.put(inFlightKey(), new ArrayList<>());
+                leader = true;
+                return true;
+            }
+        }
+
+        /**
+         * Returns the jobs waiting for this job's tile, which can no longer join them.
+         */
+        private List<SqliteTileJob> finishLoading() {
+            if (!leader) {
+                return Collections.emptyList();
+            }
+            leader = false;
+            synchronized (IN_FLIGHT) {
+                return IN_FLIGHT.remove(inFlightKey());
+            }
+        }
+
+        /**
+         * Reads this job's tile on its own.
+         */
+        void load() {
+            long interrupts = archive.getInterruptCount();
+            byte[] data;
+            startReading(Collections.singletonList(this));
+            try {
+                data = archive.readTile(tile.getZoom(), tile.getXtile(), tile.getYtile());
+            } catch (SQLException e) {
+                if (archive.getInterruptCount() != interrupts) {
+                    interrupted();
+                } else {
+                    LOG.throwing(this.getClass().getName(), "load", e);
+                    failed(e);
+                }
+                return;
+            } finally {
+                stopReading();
+            }
+            if (data != null) {
+                dataCache.put(archivePath, tile.getZoom(), tile.getXtile(), tile.getYtile(), data);
+            }
+            loaded(data == null ? null : ByteBuffer.wrap(data));
+        }
+
+        /**
+         * Hands the tile over to the {@link TileDecoder}, or notifies the listener that it does not exist.
+         * @param data the image bytes, or {@code null} if the tile does not exist
+         */
+        void loaded(ByteBuffer data) {
+            if (data != null) {
+                TileDecoder.getExecutor().execute(() -> decode(data));
+                return;
+            }
+            try {
+                if (missingTiles != null) {
+                    missingTiles.add(tile.getZoom(), tile.getXtile(), tile.getYtile());
+                }
+                tileNotFound(tile);
+                listener.tileLoadingFinished(tile, false);
+            } finally {
+                outstanding.decrementAndGet();
+                for (SqliteTileJob waiting : finishLoading()) {
+                    waiting.loadedBy(this, false);
+                }
+            }
+        }
+
+        /**
+         * Decodes the tile and notifies the listener, on a decoder thread.
+         * @param data the image bytes, decoded in place
+         */
+        private void decode(ByteBuffer data) {
+            try {
+                BufferedImage image = sharedImages.get(data);
+                if (image == null) {
+                    image = solidTiles ? SolidTileImages.fromHeader(data) : null;
+                    if (image == null) {
+                        image = TileDecoder.decode(data);
+                        if (compatibleImages) {
+                            image = TileDecoder.toCompatible(image);
+                        }
+                        if (solidTiles) {
+                            image = SolidTileImages.share(image);
+                        }
+                    }
+                    sharedImages.put(data, image);
+                }
+                tile.setImage(image);
+                tile.setLoaded(true);
+                listener.tileLoadingFinished(tile, true);
+            } catch (IOException | RuntimeException e) {
+                // Image readers of ImageIO plugins may throw unchecked exceptions on corrupt tiles
+                LOG.throwing(this.getClass().getName(), "decode", e);
+                tile.setError(e.getMessage());
+                listener.tileLoadingFinished(tile, false);
+            } finally {
+                outstanding.decrementAndGet();
+                for (SqliteTileJob waiting : finishLoading()) {
+                    waiting.loadedBy(this, true);
+                }
+            }
+        }
+
+        /**
+         * Takes the result of the job that loaded the same tile, without decoding it again.
+         * @param other the job that loaded the tile
+         * @param found whether the archive has the tile
+         */
+        private void loadedBy(SqliteTileJob other, boolean found) {
+            if (!found) {
+                loaded(null);
+                return;
+            }
+            try {
+                if (other.tile.hasError() || other.tile.getImage() == null) {
+                    // No image and no error if decoding the tile failed with an error, e.g. out of memory
+                    tile.setError(other.tile.hasError() ? other.tile.getErrorMessage() : "Tile could not be decoded");
+                    listener.tileLoadingFinished(tile, false);
+                } else {
+                    tile.setImage(other.tile.getImage());
+                    tile.setLoaded(true);
+                    listener.tileLoadingFinished(tile, true);
+                }
+            } finally {
+                outstanding.decrementAndGet();
+            }
+        }
+
+        void failed(Exception e) {
+            try {
+                tile.setError(e.getMessage());
+                listener.tileLoadingFinished(tile, false);
+            } finally {
+                outstanding.decrementAndGet();
+                for (SqliteTileJob waiting : finishLoading()) {
+                    waiting.failed(e);
+                }
+            }
+        }
+
+        /**
+         * Gives the tile back to the layer after its query was interrupted by {@link #cancelOutstandingTasks()}.
+         */
+        void interrupted() {
+            try {
+                tile.loadingCanceled();
+            } finally {
+                outstanding.decrementAndGet();
+                for (SqliteTileJob waiting : finishLoading()) {
+                    waiting.interrupted();
+                }
+            }
+        }
+
+        /**
+         * Gives the tile back to the layer without loading it, e.g. because the job was
+         * dropped from a full queue. The layer requests it again when it is still visible.
+         */
+        void cancel() {
+            boolean wasPending;
+            synchronized (pending) {
+                wasPending = pending.remove(this);
+            }
+            // otherwise the tile is being loaded by a batch
+            if (wasPending) {
+                tile.loadingCanceled();
+                outstanding.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void submit() {
+            this.submit(false);
+        }
+
+        @Override
+        public void submit(boolean force) {
+            submit(currentGeneration(), false);
+        }
+
+        /**
+         * Queues this job.
+         * @param generation the generation of the job
+         * @param prefetch whether the tile is read ahead of the view, and thus comes after all other tiles
+         */
+        void submit(long generation, boolean prefetch) {
+            // Mark the tile as loading right away so that repaints don't queue it again
+            tile.initLoading();
+            outstanding.incrementAndGet();
+            TileExistenceIndex index = archive.getExistenceIndex();
+            if ((index != null && !index.contains(tile.getZoom(), tile.getXtile(), tile.getYtile()))
+                    || (missingTiles != null && missingTiles.isMissing(tile.getZoom(), tile.getXtile(), tile.getYtile()))) {
+                loaded(null);
+                return;
+            }
+            this.generation = generation;
+            this.prefetch = prefetch;
+            sequence = SEQUENCE.incrementAndGet();
+            synchronized (pending) {
+                if (!prefetch && zoomGeneration != generation) {
+                    zoomGeneration = generation;
+                    generationZoom = tile.getZoom();
+                    viewExtent = null;
+                    if (prefetcher != null && EventQueue.isDispatchThread()) {
+                        // Read ahead once all tiles of this repaint have been requested
+                        EventQueue.invokeLater(() -> prefetch(generation));
+                    }
+                }
+                zoomRank = tile.getZoom() == generationZoom ? 0 : 1;
+                if (!prefetch && zoomRank == 0) {
+                    if (viewExtent == null) {
+                        viewExtent = new int[] {tile.getXtile(), tile.getYtile(), tile.getXtile(), tile.getYtile()};
+                    } else {
+                        viewExtent[0] = Math.min(viewExtent[0], tile.getXtile());
+                        viewExtent[1] = Math.min(viewExtent[1], tile.getYtile());
+                        viewExtent[2] = Math.max(viewExtent[2], tile.getXtile());
+                        viewExtent[3] = Math.max(viewExtent[3], tile.getYtile());
+                    }
+                }
+                pending.add(this);
+            }
+            TileLoaderExecutor.execute(this);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+import org.openstreetmap.josm.data.preferences.LongProperty;
+
+/**
+ * Tuning options of a {@link TileArchive}.
+ *
+ * Layers use {@link #fromPreferences()}; a plain instance holds the defaults.
+ */
+public class ArchiveOptions {
+
+    /** Maximum number of read connections opened per archive. */
+    public static final IntegerProperty CONNECTIONS = new IntegerProperty("mbtiles.sqlite.connections", 4);
+    /** Bytes of the file sqlite memory-maps per connection, 0 to disable memory-mapped reads. */
+    public static final LongProperty MMAP_SIZE = new LongProperty("mbtiles.sqlite.mmap_size", 256L * 1024 * 1024);
+    /** Size of sqlite's page cache per connection, in KiB. */
+    public static final IntegerProperty CACHE_SIZE = new IntegerProperty("mbtiles.sqlite.cache_size", 8192);
+
+    private int connections = CONNECTIONS.getDefaultValue();
+    private long mmapSize = MMAP_SIZE.getDefaultValue();
+    private int cacheSize = CACHE_SIZE.getDefaultValue();
+
+    /**
+     * Reads the options from the JOSM preferences.
+     * @return the configured options
+     */
+    public static ArchiveOptions fromPreferences() {
+        ArchiveOptions options = new ArchiveOptions();
+        options.setConnections(CONNECTIONS.get());
+        options.setMmapSize(MMAP_SIZE.get());
+        options.setCacheSize(CACHE_SIZE.get());
+        return options;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public long getMmapSize() {
+        return mmapSize;
+    }
+
+    public void setMmapSize(long mmapSize) {
+        this.mmapSize = mmapSize;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Returns the pragmas applied to every read connection.
+     * @return pragma names and values
+     */
+    public Map<String, String> getReadPragmas() {
+        Map<String, String> pragmas = new LinkedHashMap<>();
+        pragmas.put("mmap_size", Long.toString(Math.max(0, mmapSize)));
+        // a negative cache_size is a size in KiB rather than a number of pages
+        pragmas.put("cache_size", Integer.toString(-Math.max(0, cacheSize)));
+        pragmas.put("temp_store", "MEMORY");
+        pragmas.put("query_only", "1");
+        return pragmas;
+    }
+}
@@ -0,0 +1,379 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.openstreetmap.gui.jmapviewer.MemoryTileCache;
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.gpx.GpxData.GpxDataChangeEvent;
+import org.openstreetmap.josm.data.gpx.GpxData.GpxDataChangeListener;
+import org.openstreetmap.josm.data.gpx.IGpxTrack;
+import org.openstreetmap.josm.data.gpx.IGpxTrackSegment;
+import org.openstreetmap.josm.data.gpx.WayPoint;
+import org.openstreetmap.josm.data.osm.DataSourceChangeEvent;
+import org.openstreetmap.josm.data.osm.DataSourceListener;
+import org.openstreetmap.josm.data.preferences.BooleanProperty;
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+import org.openstreetmap.josm.data.preferences.LongProperty;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.GpxLayer;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerAddEvent;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerChangeListener;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerOrderChangeEvent;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerRemoveEvent;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Loads the tiles of an archive layer that cover the downloaded OSM data and the GPX tracks,
+ * so that mapping along them never waits for the disk.
+ *
+ * The tiles are decoded into the memory tile cache of the layer, which is enlarged to hold them.
+ * Their number is limited by the memory their images take, see {@link #MAX_BYTES}. The cache gets
+ * its previous size back once the OSM data and GPX layers are gone, see {@link #release}.
+ */
+public final class AreaPrefetcher {
+
+    /** Whether the tiles are loaded automatically when data or tracks are added or merged, or an archive layer is added. */
+    public static final BooleanProperty AUTO = new BooleanProperty("mbtiles.prefetch.area.auto", false);
+    /** Lowest zoom level loaded. */
+    public static final IntegerProperty MIN_ZOOM = new IntegerProperty("mbtiles.prefetch.area.minzoom", 12);
+    /** Highest zoom level loaded. */
+    public static final IntegerProperty MAX_ZOOM = new IntegerProperty("mbtiles.prefetch.area.maxzoom", 18);
+    /** Number of tiles loaded on each side of a track. */
+    public static final IntegerProperty BUFFER = new IntegerProperty("mbtiles.prefetch.area.buffer", 1);
+    /** Maximum memory taken by the decoded images of the tiles loaded. */
+    public static final LongProperty MAX_BYTES = new LongProperty("mbtiles.prefetch.area.bytes", 256L * 1024 * 1024);
+
+    /** Tiles kept in the tile cache for the view, besides the tiles loaded for the area. */
+    private static final int VIEW_TILES = 512;
+    /** Tiles waiting for a loader thread before more are queued. */
+    private static final int MAX_QUEUED = 64;
+
+    private static ExecutorService executor;
+    /** Size of the tile caches before they were enlarged for an area. */
+    private static final Map<MemoryTileCache, Integer> ORIGINAL_CACHE_SIZES = new WeakHashMap<>();
+
+    private AreaPrefetcher() {
+        // Hide default constructor for utility classes
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(Utils.newThreadFactory("mbtiles-area-prefetch-%d", Thread.MIN_PRIORITY));
+        }
+        return executor;
+    }
+
+    /**
+     * Collects the areas to load tiles for from layers.
+     * @param layers the layers
+     * @param boxes receives the downloaded areas of OSM data layers, as minimum latitude,
+     * minimum longitude, maximum latitude and maximum longitude
+     * @param tracks receives the track segments of GPX layers, as latitude and longitude of each point
+     */
+    public static void collectAreas(Collection<? extends Layer> layers, List<double[]> boxes, List<List<double[]>> tracks) {
+        for (Layer layer : layers) {
+            if (layer instanceof OsmDataLayer) {
+                for (Bounds bounds : ((OsmDataLayer) layer).getDataSet().getDataSourceBounds()) {
+                    boxes.add(new double[] {bounds.getMinLat(), bounds.getMinLon(), bounds.getMaxLat(), bounds.getMaxLon()});
+                }
+            } else if (layer instanceof GpxLayer) {
+                for (IGpxTrack track : ((GpxLayer) layer).data.getTracks()) {
+                    for (IGpxTrackSegment segment : track.getSegments()) {
+                        List<double[]> points = new ArrayList<>();
+                        for (WayPoint point : segment.getWayPoints()) {
+                            points.add(new double[] {point.lat(), point.lon()});
+                        }
+                        tracks.add(points);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the tiles covering areas, lowest zoom level first.
+     * @param boxes the areas, as minimum latitude, minimum longitude, maximum latitude and maximum longitude
+     * @param tracks the tracks, as latitude and longitude of each point
+     * @param minZoom the lowest zoom level
+     * @param maxZoom the highest zoom level
+     * @param buffer the number of tiles on each side of a track
+     * @param maxTiles the maximum number of tiles; zoom levels that don't fit are left out
+     * @return zoom level, x and y of each tile
+     */
+    public static List<int[]> getPositions(List<double[]> boxes, List<List<double[]>> tracks,
+            int minZoom, int maxZoom, int buffer, int maxTiles) {
+        List<int[]> positions = new ArrayList<>();
+        for (int zoom = Math.max(0, minZoom); zoom <= maxZoom; zoom++) {
+            Set<Long> zoomTiles = new LinkedHashSet<>();
+            for (double[] box : boxes) {
+                double[] min = toTile(box[2], box[1], zoom);
+                double[] max = toTile(box[0], box[3], zoom);
+                addSquare(zoomTiles, zoom, (int) min[0], (int) min[1], (int) max[0], (int) max[1]);
+            }
+            for (List<double[]> track : tracks) {
+                double[] previous = null;
+                for (double[] point : track) {
+                    double[] current = toTile(point[0], point[1], zoom);
+                    // Sample the segment every half tile, so that no tile it crosses is skipped
+                    int steps = previous == null ? 0
+                            : (int) Math.ceil(2 * Math.max(Math.abs(current[0] - previous[0]), Math.abs(current[1] - previous[1])));
+                    for (int i = 1; i <= steps; i++) {
+                        double x = previous[0] + (current[0] - previous[0]) * i / steps;
+                        double y = previous[1] + (current[1] - previous[1]) * i / steps;
+                        addSquare(zoomTiles, zoom, (int) x - buffer, (int) y - buffer, (int) x + buffer, (int) y + buffer);
+                    }
+                    if (previous == null) {
+                        addSquare(zoomTiles, zoom, (int) current[0] - buffer, (int) current[1] - buffer,
+                                (int) current[0] + buffer, (int) current[1] + buffer);
+                    }
+                    previous = current;
+                }
+            }
+            if (positions.size() + zoomTiles.size() > maxTiles) {
+                break;
+            }
+            for (long key : zoomTiles) {
+                positions.add(new int[] {zoom, (int) (key >>> 32), (int) key});
+            }
+        }
+        return positions;
+    }
+
+    private static double[] toTile(double lat, double lon, int zoom) {
+        int max = 1 << zoom;
+        double x = OsmMercator.MERCATOR_256.lonToX(lon, zoom) / 256;
+        double y = OsmMercator.MERCATOR_256.latToY(lat, zoom) / 256;
+        return new double[] {Math.max(0, Math.min(max - 0.5, x)), Math.max(0, Math.min(max - 0.5, y))};
+    }
+
+    private static void addSquare(Set<Long> tiles, int zoom, int minX, int minY, int maxX, int maxY) {
+        int max = (1 << zoom) - 1;
+        for (int x = Math.max(0, minX); x <= Math.min(max, maxX); x++) {
+            for (int y = Math.max(0, minY); y <= Math.min(max, maxY); y++) {
+                tiles.add(((long) x << 32) | y);
+            }
+        }
+    }
+
+    /**
+     * Loads the tiles of a layer covering areas in the background, configured by the JOSM preferences.
+     * @param layer the archive layer
+     * @param boxes the areas, see {@link #collectAreas}
+     * @param tracks the tracks, see {@link #collectAreas}
+     */
+    public static void prefetch(TilePrefetcher.TileSupplier layer, List<double[]> boxes, List<List<double[]>> tracks) {
+        int minZoom = MIN_ZOOM.get();
+        int maxZoom = MAX_ZOOM.get();
+        int buffer = Math.max(0, BUFFER.get());
+        long maxBytes = MAX_BYTES.get();
+        getExecutor().execute(() -> {
+            int maxTiles = getMaxTiles(layer.getPrefetchTileSource(), maxBytes);
+            load(layer, getPositions(boxes, tracks, minZoom, maxZoom, buffer, maxTiles));
+        });
+    }
+
+    /**
+     * Shrinks the tile cache of a layer to fit the areas that are left, once some were removed.
+     * Without any area left, the cache gets back the size it had before {@link #prefetch}.
+     * @param layer the archive layer
+     * @param boxes the remaining areas, see {@link #collectAreas}
+     * @param tracks the remaining tracks, see {@link #collectAreas}
+     */
+    public static void release(TilePrefetcher.TileSupplier layer, List<double[]> boxes, List<List<double[]>> tracks) {
+        int minZoom = MIN_ZOOM.get();
+        int maxZoom = MAX_ZOOM.get();
+        int buffer = Math.max(0, BUFFER.get());
+        long maxBytes = MAX_BYTES.get();
+        getExecutor().execute(() -> {
+            MemoryTileCache cache = layer.getPrefetchTileCache();
+            if (cache != null) {
+                int maxTiles = getMaxTiles(layer.getPrefetchTileSource(), maxBytes);
+                fitCache(cache, getPositions(boxes, tracks, minZoom, maxZoom, buffer, maxTiles).size());
+            }
+        });
+    }
+
+    private static int getMaxTiles(TileSource source, long maxBytes) {
+        int tileSize = source == null ? 256 : Math.max(1, source.getTileSize());
+        // Decoded RGBA images
+        return (int) Math.min(Integer.MAX_VALUE, maxBytes / (4L * tileSize * tileSize));
+    }
+
+    /**
+     * Sizes a tile cache for the tiles of an area and those of the view. The original size of the
+     * cache is kept as long as an area is loaded, so that it can be restored.
+     */
+    private static synchronized void fitCache(MemoryTileCache cache, int areaTiles) {
+        Integer original = ORIGINAL_CACHE_SIZES.get(cache);
+        if (original == null) {
+            if (areaTiles == 0) {
+                return;
+            }
+            original = cache.getCacheSize();
+            ORIGINAL_CACHE_SIZES.put(cache, original);
+        } else if (areaTiles == 0) {
+            ORIGINAL_CACHE_SIZES.remove(cache);
+        }
+        cache.setCacheSize(Math.max(original, areaTiles + VIEW_TILES));
+    }
+
+    private static void load(TilePrefetcher.TileSupplier layer, List<int[]> positions) {
+        AbstractSqliteTileLoader loader = layer.getPrefetchLoader();
+        MemoryTileCache cache = layer.getPrefetchTileCache();
+        if (loader == null || cache == null || positions.isEmpty()) {
+            return;
+        }
+        fitCache(cache, positions.size());
+        long start = System.currentTimeMillis();
+        int queued = 0;
+        try {
+            for (int[] position : positions) {
+                while (loader.getOutstandingCount() > MAX_QUEUED) {
+                    if (layer instanceof Layer && !MainApplication.getLayerManager().containsLayer((Layer) layer)) {
+                        return;
+                    }
+                    Thread.sleep(50);
+                }
+                Tile tile = layer.getPrefetchTile(position[0], position[1], position[2]);
+                if (tile != null) {
+                    loader.prefetch(tile);
+                    queued++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Logging.info("Queued " + queued + " of " + positions.size() + " tiles to prefetch in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Loads the tiles automatically when {@link #AUTO} is set: for new OSM data and GPX layers
+     * in all archive layers, for all OSM data and GPX layers in a new archive layer, and for data
+     * downloaded or tracks merged into existing layers. The tile caches shrink again when OSM data
+     * and GPX layers are removed.
+     */
+    public static class AutoPrefetchListener implements LayerChangeListener, DataSourceListener, GpxDataChangeListener {
+        /** Set while a load for changed data is queued, so that a burst of changes loads the tiles once. */
+        private boolean changePending;
+
+        @Override
+        public void layerAdded(LayerAddEvent e) {
+            Layer added = e.getAddedLayer();
+            if (added instanceof OsmDataLayer) {
+                ((OsmDataLayer) added).getDataSet().addDataSourceListener(this);
+            } else if (added instanceof GpxLayer) {
+                ((GpxLayer) added).data.addChangeListener(this);
+            }
+            if (!AUTO.get()) {
+                return;
+            }
+            if (added instanceof TilePrefetcher.TileSupplier) {
+                prefetchLater(Collections.singletonList((TilePrefetcher.TileSupplier) added));
+            } else if (added instanceof OsmDataLayer || added instanceof GpxLayer) {
+                prefetchLater(getArchiveLayers());
+            }
+        }
+
+        @Override
+        public void layerRemoving(LayerRemoveEvent e) {
+            // Loading stops by itself once an archive layer is gone
+            Layer removed = e.getRemovedLayer();
+            if (removed instanceof OsmDataLayer) {
+                ((OsmDataLayer) removed).getDataSet().removeDataSourceListener(this);
+            } else if (removed instanceof GpxLayer) {
+                ((GpxLayer) removed).data.removeChangeListener(this);
+            }
+            if (removed instanceof OsmDataLayer || removed instanceof GpxLayer) {
+                // The layer is still in the layer list until the event is handled
+                EventQueue.invokeLater(() -> {
+                    List<double[]> boxes = new ArrayList<>();
+                    List<List<double[]>> tracks = new ArrayList<>();
+                    collectAreas(MainApplication.getLayerManager().getLayers(), boxes, tracks);
+                    for (TilePrefetcher.TileSupplier target : getArchiveLayers()) {
+                        release(target, boxes, tracks);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void layerOrderChanged(LayerOrderChangeEvent e) {
+            // Nothing to do
+        }
+
+        @Override
+        public void dataSourceChange(DataSourceChangeEvent event) {
+            dataChanged();
+        }
+
+        @Override
+        public void gpxDataChanged(GpxDataChangeEvent e) {
+            dataChanged();
+        }
+
+        private void dataChanged() {
+            if (!AUTO.get()) {
+                return;
+            }
+            synchronized (this) {
+                if (changePending) {
+                    return;
+                }
+                changePending = true;
+            }
+            EventQueue.invokeLater(() -> {
+                synchronized (this) {
+                    changePending = false;
+                }
+                prefetchLater(getArchiveLayers());
+            });
+        }
+
+        /**
+         * Loads the tiles of all areas into layers. Tiles loaded for earlier areas are skipped, but
+         * each cache is sized for all areas.
+         */
+        private static void prefetchLater(List<TilePrefetcher.TileSupplier> targets) {
+            // A new archive layer gets its tile loader once it is attached to the map view
+            EventQueue.invokeLater(() -> {
+                List<double[]> boxes = new ArrayList<>();
+                List<List<double[]>> tracks = new ArrayList<>();
+                collectAreas(MainApplication.getLayerManager().getLayers(), boxes, tracks);
+                if (boxes.isEmpty() && tracks.isEmpty()) {
+                    return;
+                }
+                for (TilePrefetcher.TileSupplier target : targets) {
+                    prefetch(target, boxes, tracks);
+                }
+            });
+        }
+
+        private static List<TilePrefetcher.TileSupplier> getArchiveLayers() {
+            List<TilePrefetcher.TileSupplier> layers = new ArrayList<>();
+            for (Layer layer : MainApplication.getLayerManager().getLayers()) {
+                if (layer instanceof TilePrefetcher.TileSupplier) {
+                    layers.add((TilePrefetcher.TileSupplier) layer);
+                }
+            }
+            return layers;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Image input stream reading straight from a byte buffer, e.g. a heap array or a direct buffer
+ * of the {@link TileDataCache}. Unlike a {@link javax.imageio.stream.MemoryCacheImageInputStream}
+ * over a {@link java.io.ByteArrayInputStream}, it does not copy the bytes into a cache of its own.
+ */
+class ByteBufferImageInputStream extends ImageInputStreamImpl {
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a stream over the remaining bytes of a buffer. The buffer itself is not modified.
+     * @param buffer the buffer
+     */
+    ByteBufferImageInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= buffer.limit()) {
+            return -1;
+        }
+        return buffer.get((int) streamPos++) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        int remaining = buffer.limit() - (int) Math.min(streamPos, buffer.limit());
+        if (remaining == 0) {
+            return -1;
+        }
+        int count = Math.min(len, remaining);
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) streamPos);
+        view.get(b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return buffer.limit();
+    }
+}
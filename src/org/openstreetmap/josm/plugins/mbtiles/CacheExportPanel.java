@@ -6,12 +6,15 @@ import java.awt.GridBagLayout;
 import java.awt.event.ActionEvent;
 import java.io.File;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.AbstractAction;
 import javax.swing.JFileChooser;
@@ -26,6 +29,7 @@ import javax.swing.table.TableModel;
 import org.apache.commons.jcs3.access.CacheAccess;
 import org.openstreetmap.josm.actions.DiskAccessAction;
 import org.openstreetmap.josm.data.cache.BufferedImageCacheEntry;
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.PleaseWaitRunnable;
 import org.openstreetmap.josm.gui.layer.TMSLayer;
@@ -37,6 +41,7 @@ import org.openstreetmap.josm.gui.widgets.AbstractFileChooser;
 import org.openstreetmap.josm.gui.widgets.ButtonColumn;
 import org.openstreetmap.josm.tools.GBC;
 import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
 
 
 public class CacheExportPanel implements SubPreferenceSetting {
@@ -136,10 +141,19 @@ public class CacheExportPanel implements SubPreferenceSetting {
     }
 
     static class ExportTask extends PleaseWaitRunnable {
+        /** Number of threads reading entries from the tile cache during an export. */
+        static final IntegerProperty READER_THREADS = new IntegerProperty("mbtiles.export.readers",
+                Math.min(4, Runtime.getRuntime().availableProcessors()));
+        /** Number of tiles read ahead of the sqlite writer. */
+        private static final int QUEUE_SIZE = 256;
+
         private String layerName;
         private CacheAccess<String, BufferedImageCacheEntry> cache;
         private File saveFile;
-        private boolean cancel = false;
+        private volatile boolean cancel = false;
+        /** Set when the writer is done, so that the readers stop waiting for room in the queue */
+        private volatile boolean stopped = false;
+        private volatile RuntimeException readFailure;
 
         public ExportTask(CacheAccess<String, BufferedImageCacheEntry> cache, String layerName, File saveFile) {
             super(tr("Exporing {0} cache files", layerName));
@@ -156,69 +170,190 @@ public class CacheExportPanel implements SubPreferenceSetting {
                     throw new IOException("Unable to delete file: " + saveFile.getAbsolutePath());
                 }
             }
-            Connection connection = null;
+            boolean vacuum = MbtilesWriter.VACUUM.get();
+            File writeFile = vacuum ? new File(saveFile.getPath() + ".tmp") : saveFile;
+            if (vacuum && writeFile.exists() && !writeFile.delete()) {
+                throw new IOException("Unable to delete file: " + writeFile.getAbsolutePath());
+            }
+            MbtilesWriter writer = null;
+            boolean completed = false;
+            boolean vacuumStarted = false;
             try {
                 long startTime = System.currentTimeMillis();
-                connection = SqliteUtils.obtainSqliteDbConnection(saveFile, false);
-                connection.setAutoCommit(false);
-                Statement stmt = connection.createStatement();
-                stmt.execute("CREATE TABLE metadata (name text, value text)");
-                PreparedStatement metadataStmt = connection.prepareStatement("INSERT INTO metadata(name, value) VALUES(:1, :2);");
-                setMetadata(metadataStmt, "name", layerName);
-                setMetadata(metadataStmt, "type", "baselayer");
-                setMetadata(metadataStmt, "version", "1");
-                setMetadata(metadataStmt, "description", layerName);
-                setMetadata(metadataStmt, "format", "jpg");		
-                stmt.execute("CREATE TABLE tiles (zoom_level integer, tile_column integer, tile_row integer, tile_data blob);");
-                metadataStmt.close();
-                PreparedStatement insertStmt = connection.prepareStatement("INSERT INTO tiles(zoom_level, tile_column, tile_row, tile_data) values(:1, :2, :3, :4);");
-
-                Set<Entry<String, BufferedImageCacheEntry>> matching = cache.getMatching("^" + layerName + ".*$").entrySet();
-                progressMonitor.setTicksCount(matching.size());
-
-                for(Entry<String, BufferedImageCacheEntry> entry: matching) {
-                    insertStmt.clearParameters();
-                    String key = entry.getKey();
-                    String[] parts = key.split("/");
-                    int len = parts.length;
-                    int zoom = Integer.parseInt(parts[len-3]);
-                    int tilex = Integer.parseInt(parts[len-2]);
-                    int tiley = (int) Math.pow(2, zoom) - 1 - Integer.parseInt(parts[len-1]);								
-                    insertStmt.setInt(1, zoom);
-                    insertStmt.setInt(2, tilex);
-                    insertStmt.setInt(3, tiley);				
-                    insertStmt.setBytes(4, entry.getValue().getContent()); //setBlob is not supported
-                    insertStmt.execute();                    
-                    progressMonitor.worked(1);
-                    if (cancel ) {
-                        saveFile.delete();
-                        return;
-                    }
+                writer = new MbtilesWriter(writeFile, MbtilesWriter.PAGE_SIZE.get(), MbtilesWriter.BATCH_SIZE.get(),
+                        MbtilesWriter.COMMIT_INTERVAL.get(), MbtilesWriter.DEDUPLICATE.get());
+                writer.setMetadata("name", layerName);
+                writer.setMetadata("type", "baselayer");
+                writer.setMetadata("version", "1");
+                writer.setMetadata("description", layerName);
+
+                // Only the keys are collected up front, the entries are fetched by the reader threads
+                List<String> keys = getLayerKeys();
+                progressMonitor.setTicksCount(keys.size());
+
+                if (!exportTiles(keys, writer)) {
+                    return;
                 }
-                connection.commit();
-                connection.close();
-                Logging.info("MbTiles export took: " + (System.currentTimeMillis() - startTime) + " ms");
+                long loadTime = Math.max(1, System.currentTimeMillis() - startTime);
+                progressMonitor.indeterminateSubTask(tr("Building index"));
+                writer.finish();
+                if (vacuum) {
+                    progressMonitor.indeterminateSubTask(tr("Compacting file"));
+                    vacuumStarted = true;
+                    writer.vacuumInto(saveFile);
+                }
+                completed = true;
+                long time = Math.max(1, System.currentTimeMillis() - startTime);
+                Logging.info("MbTiles export took: " + time + " ms (" + writer.getTileCount() * 1000 / loadTime + " tiles/s, "
+                        + writer.getImageCount() + " distinct images for " + writer.getTileCount() + " tiles)");
             } catch (Exception e) {
-                saveFile.delete();
                 throw new IOException(e);
             } finally {
-                if (connection != null) {
-                    try {
-                        connection.close();
-                    } catch (SQLException e) {
-                        Logging.logWithStackTrace(Logging.LEVEL_WARN, "Error closing sqlite database", e);
+                if (writer != null) {
+                    writer.close();
+                }
+                if (!completed) {
+                    // Without vacuum, the file written is the save file
+                    writeFile.delete();
+                    if (vacuumStarted) {
+                        saveFile.delete();
                     }
+                } else if (vacuum && !writeFile.delete()) {
+                    Logging.warn("Unable to delete temporary export file: " + writeFile.getAbsolutePath());
                 }
             }
         }
 
-        private void setMetadata(PreparedStatement stmt, String name, String value) throws SQLException {
-            stmt.clearParameters();
-            stmt.setString(1, name);
-            stmt.setString(2, value);
-            stmt.execute();
+        /**
+         * Runs the export pipeline: reader threads fetch and parse the cache entries and hand
+         * them to the calling thread through a bounded queue. The calling thread is the only
+         * one writing to sqlite.
+         * @param keys the keys to export
+         * @param writer the target file
+         * @return {@code false} if the export was canceled
+         * @throws SQLException if a tile cannot be written
+         * @throws IOException if a cache entry cannot be read
+         * @throws InterruptedException if the export thread is interrupted
+         */
+        private boolean exportTiles(List<String> keys, MbtilesWriter writer) throws SQLException, IOException, InterruptedException {
+            int readers = Math.max(1, READER_THREADS.get());
+            BlockingQueue<ExportTile> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            AtomicInteger nextKey = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(readers,
+                    Utils.newThreadFactory("mbtiles-export-reader-%d", Thread.NORM_PRIORITY));
+            try {
+                for (int i = 0; i < readers; i++) {
+                    executor.execute(() -> readEntries(keys, nextKey, queue));
+                }
+                int finishedReaders = 0;
+                while (finishedReaders < readers) {
+                    if (cancel) {
+                        return false;
+                    }
+                    if (readFailure != null) {
+                        throw new IOException(readFailure);
+                    }
+                    ExportTile tile = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (tile == ExportTile.END) {
+                        finishedReaders++;
+                    } else if (tile != null) {
+                        if (tile.data != null) {
+                            writer.addTile(tile.zoom, tile.column, tile.row, tile.data);
+                        }
+                        progressMonitor.worked(1);
+                    }
+                }
+                if (readFailure != null) {
+                    throw new IOException(readFailure);
+                }
+                return !cancel;
+            } finally {
+                stopped = true;
+                executor.shutdownNow();
+            }
         }
 
+        private void readEntries(List<String> keys, AtomicInteger nextKey, BlockingQueue<ExportTile> queue) {
+            try {
+                int i;
+                while (!cancel && !stopped && (i = nextKey.getAndIncrement()) < keys.size()) {
+                    String key = keys.get(i);
+                    // the entry may have been evicted since the keys were listed, the tile is then skipped
+                    if (!offer(queue, ExportTile.fromCacheEntry(key, cache.get(key)))) {
+                        return;
+                    }
+                }
+                offer(queue, ExportTile.END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                Logging.logWithStackTrace(Logging.LEVEL_WARN, "Error reading tile cache entry", e);
+                readFailure = e;
+            }
+        }
+
+        /**
+         * Adds a tile to the queue, waiting for room unless the export was stopped.
+         */
+        private boolean offer(BlockingQueue<ExportTile> queue, ExportTile tile) throws InterruptedException {
+            while (!queue.offer(tile, 100, TimeUnit.MILLISECONDS)) {
+                if (cancel || stopped) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Lists the cache keys of the exported layer. Keys are made of the layer name,
+         * a colon and the tile id.
+         * @return the keys of the layer's tiles
+         */
+        private List<String> getLayerKeys() {
+            String prefix = layerName + ":";
+            List<String> keys = new ArrayList<>();
+            for (String key : cache.getCacheControl().getKeySet()) {
+                if (key.startsWith(prefix)) {
+                    keys.add(key);
+                }
+            }
+            return keys;
+        }
+
+        /**
+         * A tile travelling from the reader threads to the writer.
+         */
+        private static final class ExportTile {
+            /** Sent by each reader thread when it has no more keys. */
+            static final ExportTile END = new ExportTile(0, 0, 0, null);
+
+            final int zoom;
+            final int column;
+            final int row;
+            final byte[] data;
+
+            ExportTile(int zoom, int column, int row, byte[] data) {
+                this.zoom = zoom;
+                this.column = column;
+                this.row = row;
+                this.data = data;
+            }
+
+            /**
+             * Parses a cache key ending with zoom/x/y, converting y to the TMS row.
+             * @param key the cache key
+             * @param entry the cache entry, or {@code null} if it has been evicted
+             * @return the tile, with {@code null} data if the entry has been evicted
+             */
+            static ExportTile fromCacheEntry(String key, BufferedImageCacheEntry entry) {
+                String[] parts = key.split("/");
+                int len = parts.length;
+                int zoom = Integer.parseInt(parts[len-3]);
+                int tilex = Integer.parseInt(parts[len-2]);
+                int tiley = (int) Math.pow(2, zoom) - 1 - Integer.parseInt(parts[len-1]);
+                return new ExportTile(zoom, tilex, tiley, entry == null ? null : entry.getContent());
+            }
+        }
 
         @Override
         protected void cancel() {
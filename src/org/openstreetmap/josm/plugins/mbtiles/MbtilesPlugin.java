@@ -1,6 +1,7 @@
 package org.openstreetmap.josm.plugins.mbtiles;
 
 import org.openstreetmap.josm.actions.ExtensionFileFilter;
+import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.preferences.PreferenceSetting;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
@@ -21,6 +22,7 @@ public class MbtilesPlugin extends Plugin
         ExtensionFileFilter.addImporter(new MbtilesFileImporter());
         ExtensionFileFilter.addImporter(new MobacAtlasFileImporter());
         ExtensionFileFilter.updateAllFormatsImporter();
+        MainApplication.getLayerManager().addLayerChangeListener(new AreaPrefetcher.AutoPrefetchListener());
     }
     
     @Override
@@ -0,0 +1,293 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+import org.openstreetmap.josm.data.preferences.BooleanProperty;
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Writes a new MBTiles file in bulk.
+ *
+ * Tiles are inserted in JDBC batches and committed periodically, on a connection without
+ * rollback journal or syncs. The target file is considered disposable until {@link #finish()}.
+ * Indexes are only built once all tiles are loaded, which is much faster than maintaining
+ * them during the load, except for the key of the deduplicated images. If a tile position was written several times, the last tile wins.
+ *
+ * The zoom range, bounds, center and image format are gathered while the tiles stream through
+ * and written to the metadata by {@link #finish()}, so that readers never need to scan the tiles.
+ * The tile rectangle of every zoom level is stored as {@code tile_extents}, in the format of
+ * {@link TileExtents#toString()}; readers fall back to it when other metadata is missing.
+ *
+ * Optionally, identical tiles are stored only once, using the deduplicated MBTiles layout:
+ * an {@code images} table keyed by the MD5 of the tile content, a {@code map} table pointing
+ * each tile to its image and a {@code tiles} view joining both.
+ */
+public class MbtilesWriter {
+
+    /** Number of tiles sent to sqlite in one JDBC batch. */
+    public static final IntegerProperty BATCH_SIZE = new IntegerProperty("mbtiles.export.batch", 500);
+    /** Number of tiles written per transaction. */
+    public static final IntegerProperty COMMIT_INTERVAL = new IntegerProperty("mbtiles.export.commit", 20000);
+    /** Page size of exported files, in bytes. */
+    public static final IntegerProperty PAGE_SIZE = new IntegerProperty("mbtiles.export.page_size", 65536);
+    /** Whether identical tiles are stored only once. */
+    public static final BooleanProperty DEDUPLICATE = new BooleanProperty("mbtiles.export.deduplicate", false);
+    /** Whether the export is written to a temporary file first and then vacuumed into the target file. */
+    public static final BooleanProperty VACUUM = new BooleanProperty("mbtiles.export.vacuum", false);
+
+    private final Connection connection;
+    private final PreparedStatement metadataStmt;
+    private final PreparedStatement insertStmt;
+    private final PreparedStatement imageStmt;
+    private final boolean deduplicate;
+    private final MessageDigest digest;
+    private final TileExtents extents = new TileExtents();
+    private TileFormat format;
+    private final int batchSize;
+    private final int commitInterval;
+    private int batched;
+    private int uncommitted;
+    private long tileCount;
+    private long imageCount;
+    private boolean closed;
+
+    /**
+     * Creates the file and its tables.
+     * @param file the file to create
+     * @param pageSize the page size of the file
+     * @param batchSize the number of tiles per JDBC batch
+     * @param commitInterval the number of tiles per transaction
+     * @param deduplicate whether to store identical tiles only once
+     * @throws SqliteException if the file cannot be created
+     * @throws SQLException if the tables cannot be created
+     */
+    public MbtilesWriter(File file, int pageSize, int batchSize, int commitInterval, boolean deduplicate)
+            throws SqliteException, SQLException {
+        this.batchSize = Math.max(1, batchSize);
+        this.commitInterval = Math.max(this.batchSize, commitInterval);
+        this.deduplicate = deduplicate;
+        try {
+            digest = deduplicate ? MessageDigest.getInstance("MD5") : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new SqliteException("MD5 is not available", e);
+        }
+        connection = SqliteUtils.obtainSqliteBulkWriteConnection(file, pageSize);
+        try {
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE TABLE metadata (name text, value text)");
+                if (deduplicate) {
+                    stmt.execute("CREATE TABLE map (zoom_level integer, tile_column integer, tile_row integer, tile_id text)");
+                    // The key lets sqlite drop repeated images, so they need not be remembered here
+                    stmt.execute("CREATE TABLE images (tile_data blob, tile_id text PRIMARY KEY)");
+                    stmt.execute("CREATE VIEW tiles AS SELECT map.zoom_level AS zoom_level, map.tile_column AS tile_column,"
+                            + " map.tile_row AS tile_row, images.tile_data AS tile_data"
+                            + " FROM map JOIN images ON images.tile_id = map.tile_id");
+                } else {
+                    stmt.execute("CREATE TABLE tiles (zoom_level integer, tile_column integer, tile_row integer, tile_data blob)");
+                }
+            }
+            metadataStmt = connection.prepareStatement("INSERT INTO metadata(name, value) VALUES(?, ?)");
+            if (deduplicate) {
+                insertStmt = connection.prepareStatement("INSERT INTO map(zoom_level, tile_column, tile_row, tile_id) VALUES(?, ?, ?, ?)");
+                imageStmt = connection.prepareStatement("INSERT OR IGNORE INTO images(tile_data, tile_id) VALUES(?, ?)");
+            } else {
+                insertStmt = connection.prepareStatement("INSERT INTO tiles(zoom_level, tile_column, tile_row, tile_data) VALUES(?, ?, ?, ?)");
+                imageStmt = null;
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a row to the metadata table.
+     * @param name the metadata name
+     * @param value the metadata value
+     * @throws SQLException if the row cannot be written
+     */
+    public void setMetadata(String name, String value) throws SQLException {
+        metadataStmt.setString(1, name);
+        metadataStmt.setString(2, value);
+        metadataStmt.execute();
+    }
+
+    /**
+     * Adds a tile.
+     * @param zoom the zoom level
+     * @param column the tile column
+     * @param row the tile row, in TMS order
+     * @param data the encoded image
+     * @throws SQLException if the tile cannot be written
+     */
+    public void addTile(int zoom, int column, int row, byte[] data) throws SQLException {
+        insertStmt.setInt(1, zoom);
+        insertStmt.setInt(2, column);
+        insertStmt.setInt(3, row);
+        if (deduplicate) {
+            String tileId = contentId(data);
+            imageStmt.setBytes(1, data);
+            imageStmt.setString(2, tileId);
+            imageStmt.addBatch();
+            insertStmt.setString(4, tileId);
+        } else {
+            insertStmt.setBytes(4, data); //setBlob is not supported
+        }
+        insertStmt.addBatch();
+        tileCount++;
+        extents.add(zoom, column, (1 << zoom) - 1 - row);
+        if (format == null) {
+            format = TileFormat.detect(data);
+        }
+        if (++batched >= batchSize) {
+            flush();
+        }
+    }
+
+    private String contentId(byte[] data) {
+        byte[] hash = digest.digest(data);
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private void flush() throws SQLException {
+        if (batched > 0) {
+            if (imageStmt != null) {
+                imageStmt.executeBatch();
+            }
+            insertStmt.executeBatch();
+            uncommitted += batched;
+            batched = 0;
+        }
+        if (uncommitted >= commitInterval) {
+            connection.commit();
+            uncommitted = 0;
+        }
+    }
+
+    /**
+     * Writes the pending tiles, builds the indexes and gathers the statistics of the query planner.
+     * @throws SQLException if the tiles cannot be written or the indexes cannot be built
+     */
+    public void finish() throws SQLException {
+        flush();
+        writeComputedMetadata();
+        connection.commit();
+        uncommitted = 0;
+        try (Statement stmt = connection.createStatement()) {
+            removeDuplicateTiles(stmt);
+            if (deduplicate) {
+                stmt.execute("CREATE UNIQUE INDEX map_index ON map (zoom_level, tile_column, tile_row)");
+                try (ResultSet rs = stmt.executeQuery("SELECT count(*) FROM images")) {
+                    imageCount = rs.next() ? rs.getLong(1) : 0;
+                }
+            } else {
+                stmt.execute("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            }
+            connection.commit();
+            stmt.execute("ANALYZE");
+            connection.commit();
+        }
+    }
+
+    /**
+     * Keeps only the last tile written for each position, so that the unique index can be built.
+     * Several cache entries of one layer can resolve to the same tile, e.g. after its URL changed.
+     */
+    private void removeDuplicateTiles(Statement stmt) throws SQLException {
+        String table = deduplicate ? "map" : "tiles";
+        int removed = stmt.executeUpdate("DELETE FROM " + table + " WHERE rowid NOT IN (SELECT max(rowid) FROM " + table
+                + " GROUP BY zoom_level, tile_column, tile_row)");
+        if (removed == 0) {
+            return;
+        }
+        tileCount -= removed;
+        if (deduplicate) {
+            stmt.executeUpdate("DELETE FROM images WHERE tile_id NOT IN (SELECT tile_id FROM map)");
+        }
+        connection.commit();
+        Logging.info("Removed " + removed + " duplicate tiles from the export");
+    }
+
+    private void writeComputedMetadata() throws SQLException {
+        if (format != null) {
+            setMetadata("format", format.getName());
+        }
+        if (!extents.isEmpty()) {
+            double[] bounds = extents.getBounds();
+            setMetadata("minzoom", Integer.toString(extents.getMinZoom()));
+            setMetadata("maxzoom", Integer.toString(extents.getMaxZoom()));
+            setMetadata("bounds", extents.getBoundsString());
+            setMetadata("center", String.format(Locale.ROOT, "%.6f,%.6f,%d",
+                    (bounds[0] + bounds[2]) / 2, (bounds[1] + bounds[3]) / 2, extents.getMinZoom()));
+            setMetadata("tile_extents", extents.toString());
+        }
+    }
+
+    /**
+     * Writes a compacted copy of the finished file. The copy has no free pages and its
+     * tables and indexes are stored contiguously.
+     * @param target the file to write, which must not exist
+     * @throws SQLException if the copy cannot be written
+     */
+    public void vacuumInto(File target) throws SQLException {
+        // VACUUM cannot run inside a transaction
+        connection.setAutoCommit(true);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("VACUUM INTO '" + target.getAbsolutePath().replace("'", "''") + "'");
+        }
+    }
+
+    /**
+     * Returns the number of tiles added so far.
+     * @return the tile count
+     */
+    public long getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Returns the tile rectangles of the tiles added so far.
+     * @return the extents, in XYZ numbering
+     */
+    public TileExtents getExtents() {
+        return extents;
+    }
+
+    /**
+     * Returns the number of distinct images in the file, known once {@link #finish()} has run.
+     * Without deduplication, this is the number of tiles.
+     * @return the image count
+     */
+    public long getImageCount() {
+        return deduplicate ? imageCount : tileCount;
+    }
+
+    /**
+     * Closes the file. Tiles added after the last {@link #finish()} are lost.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            Logging.logWithStackTrace(Logging.LEVEL_WARN, "Error closing sqlite database", e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.LongSupplier;
+
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+
+/**
+ * Remembers the tiles an archive does not have, so that repaints of sparse areas don't query
+ * the database again for the same empty slots.
+ *
+ * Entries expire after a while and are all dropped when the size or modification time of the
+ * file changes, so tiles added to the archive show up eventually.
+ */
+public class MissingTileCache {
+
+    /** Seconds a missing tile is remembered, 0 to disable the cache. */
+    public static final IntegerProperty TTL = new IntegerProperty("mbtiles.loader.missing.ttl", 300);
+    /** Maximum number of missing tiles remembered per layer. */
+    public static final IntegerProperty MAX_ENTRIES = new IntegerProperty("mbtiles.loader.missing.entries", 65536);
+
+    /** The file is checked for changes at most this often. */
+    private static final long CHECK_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final File file;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    /** Expiry time by packed tile position, in insertion order. */
+    private final LinkedHashMap<Long, Long> expiries = new LinkedHashMap<>();
+    private long fileLength;
+    private long fileModified;
+    private long nextCheck;
+
+    /**
+     * Creates a cache.
+     * @param file the archive file, checked for changes
+     * @param maxEntries the maximum number of tiles remembered
+     * @param ttlMillis how long a tile is remembered, in milliseconds
+     */
+    public MissingTileCache(File file, int maxEntries, long ttlMillis) {
+        this(file, maxEntries, ttlMillis, System::nanoTime);
+    }
+
+    MissingTileCache(File file, int maxEntries, long ttlMillis, LongSupplier clock) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.clock = clock;
+        this.fileLength = file.length();
+        this.fileModified = file.lastModified();
+        this.nextCheck = clock.getAsLong() + CHECK_INTERVAL_NANOS;
+    }
+
+    /**
+     * Returns whether a tile is known to be missing.
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return {@code true} if the archive did not have the tile recently
+     */
+    public synchronized boolean isMissing(int zoom, int x, int y) {
+        long now = clock.getAsLong();
+        checkFile(now);
+        Long key = key(zoom, x, y);
+        Long expiry = expiries.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry - now < 0) {
+            expiries.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers that the archive does not have a tile. A tile that is remembered already keeps its expiry time.
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     */
+    public synchronized void add(int zoom, int x, int y) {
+        long now = clock.getAsLong();
+        if (expiries.putIfAbsent(key(zoom, x, y), now + ttlNanos) == null) {
+            // The oldest entries expire first, so they are dropped first
+            for (Iterator<Long> it = expiries.values().iterator(); expiries.size() > maxEntries && it.hasNext();) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tiles remembered, including expired ones that have not been looked up since.
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return expiries.size();
+    }
+
+    /**
+     * Packs a tile position into 5 bits of zoom level and 29 bits each of x and y, which is enough
+     * up to zoom level 29.
+     */
+    private static long key(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) (x & 0x1fffffff) << 29) | (y & 0x1fffffff);
+    }
+
+    private void checkFile(long now) {
+        if (now - nextCheck < 0) {
+            return;
+        }
+        nextCheck = now + CHECK_INTERVAL_NANOS;
+        long length = file.length();
+        long modified = file.lastModified();
+        if (length != fileLength || modified != fileModified) {
+            fileLength = length;
+            fileModified = modified;
+            expiries.clear();
+        }
+    }
+}
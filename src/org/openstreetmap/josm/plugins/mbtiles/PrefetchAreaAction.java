@@ -0,0 +1,44 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.event.ActionEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.AbstractAction;
+import javax.swing.JOptionPane;
+
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.Notification;
+
+/**
+ * Layer menu entry loading the tiles that cover the downloaded OSM data and the GPX tracks, see {@link AreaPrefetcher}.
+ */
+public class PrefetchAreaAction extends AbstractAction {
+    private static final long serialVersionUID = 4127318625170950413L;
+    private final transient TilePrefetcher.TileSupplier layer;
+
+    /**
+     * Creates the action.
+     * @param layer the archive layer to load tiles of
+     */
+    public PrefetchAreaAction(TilePrefetcher.TileSupplier layer) {
+        super(tr("Prefetch tiles around data and tracks"));
+        putValue(SHORT_DESCRIPTION, tr("Load the tiles covering the downloaded data and the GPX tracks into memory"));
+        this.layer = layer;
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        List<double[]> boxes = new ArrayList<>();
+        List<List<double[]>> tracks = new ArrayList<>();
+        AreaPrefetcher.collectAreas(MainApplication.getLayerManager().getLayers(), boxes, tracks);
+        if (boxes.isEmpty() && tracks.isEmpty()) {
+            new Notification(tr("There is no downloaded data or GPX track to prefetch tiles for."))
+                    .setIcon(JOptionPane.INFORMATION_MESSAGE).show();
+            return;
+        }
+        AreaPrefetcher.prefetch(layer, boxes, tracks);
+    }
+}
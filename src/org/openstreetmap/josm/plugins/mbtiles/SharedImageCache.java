@@ -0,0 +1,127 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+
+/**
+ * Shares one decoded image between tiles with identical bytes, such as the thousands of blank
+ * or ocean tiles of sparse and coastal archives, shared by all archive layers.
+ *
+ * Only small tiles are shared, since those are the ones repeated in practice. They are keyed by
+ * their whole content, so tiles are never mixed up by a hash collision. The images are only
+ * weakly referenced: an image is forgotten once no tile cache holds a tile showing it. Tiles
+ * with a shared image must not modify it.
+ */
+public class SharedImageCache {
+
+    /** Largest encoded tile whose decoded image is shared, 0 to disable sharing. */
+    public static final IntegerProperty MAX_TILE_BYTES = new IntegerProperty("mbtiles.decoder.shared.bytes", 4096);
+    /** Maximum number of distinct tile contents remembered. */
+    public static final IntegerProperty MAX_ENTRIES = new IntegerProperty("mbtiles.decoder.shared.entries", 2048);
+
+    private static SharedImageCache instance;
+
+    private final int maxTileBytes;
+    private final int maxEntries;
+    private final LinkedHashMap<Key, WeakReference<BufferedImage>> images = new LinkedHashMap<>(256, 0.75f, true);
+
+    /**
+     * Creates a cache.
+     * @param maxTileBytes the largest encoded tile shared
+     * @param maxEntries the maximum number of distinct tile contents remembered
+     */
+    public SharedImageCache(int maxTileBytes, int maxEntries) {
+        this.maxTileBytes = maxTileBytes;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cache shared by all layers, sized from the preferences.
+     * @return the shared cache
+     */
+    public static synchronized SharedImageCache getInstance() {
+        if (instance == null) {
+            instance = new SharedImageCache(MAX_TILE_BYTES.get(), MAX_ENTRIES.get());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the image decoded from identical bytes.
+     * @param data the encoded image, from its position to its limit; the buffer is not modified
+     * @return the shared image, or {@code null} if no identical tile has been decoded or its image is gone
+     */
+    public BufferedImage get(ByteBuffer data) {
+        if (!isShared(data)) {
+            return null;
+        }
+        Key key = new Key(data);
+        synchronized (this) {
+            WeakReference<BufferedImage> ref = images.get(key);
+            BufferedImage image = ref == null ? null : ref.get();
+            if (ref != null && image == null) {
+                images.remove(key);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Remembers the image decoded from a tile, evicting the least recently used contents if needed.
+     * @param data the encoded image, from its position to its limit; the buffer is not modified
+     * @param image the decoded image
+     */
+    public void put(ByteBuffer data, BufferedImage image) {
+        if (!isShared(data)) {
+            return;
+        }
+        Key key = new Key(data);
+        synchronized (this) {
+            images.put(key, new WeakReference<>(image));
+            for (Iterator<WeakReference<BufferedImage>> it = images.values().iterator(); images.size() > maxEntries && it.hasNext();) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tile contents remembered, including those whose image is gone but
+     * that have not been looked up since.
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return images.size();
+    }
+
+    private boolean isShared(ByteBuffer data) {
+        return maxEntries > 0 && data.remaining() > 0 && data.remaining() <= maxTileBytes;
+    }
+
+    private static final class Key {
+        private final byte[] data;
+        private final int hash;
+
+        Key(ByteBuffer buffer) {
+            data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && hash == ((Key) obj).hash && Arrays.equals(data, ((Key) obj).data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
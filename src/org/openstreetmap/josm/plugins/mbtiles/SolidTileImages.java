@@ -0,0 +1,153 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openstreetmap.josm.data.preferences.BooleanProperty;
+
+/**
+ * Recognizes tiles of a single colour, such as the fully transparent tiles of overlay archives,
+ * and gives all tiles of the same colour and size one shared image.
+ *
+ * Paletted PNG tiles with a single palette entry are recognized from their header, without
+ * decoding them at all. Other tiles are checked after decoding, so that at least their image
+ * is not kept once per tile. Tiles with a shared image must not modify it.
+ */
+public final class SolidTileImages {
+
+    /** Whether single colour tiles share one image. */
+    public static final BooleanProperty ENABLED = new BooleanProperty("mbtiles.decoder.solid", true);
+
+    /** Maximum number of distinct colours and sizes kept. */
+    private static final int MAX_IMAGES = 64;
+    private static final int MAX_SIZE = 0xFFFF;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int PNG_PALETTE = 3;
+
+    private static final Map<Long, BufferedImage> IMAGES = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+
+    private SolidTileImages() {
+        // Hide default constructor for utility classes
+    }
+
+    /**
+     * Returns the shared image of a tile whose header tells that it has a single colour.
+     * @param data the encoded image, from its position to its limit; the buffer is not modified
+     * @return the shared image, or {@code null} if the tile must be decoded
+     */
+    public static BufferedImage fromHeader(ByteBuffer data) {
+        int[] solid = parseSolidPng(data);
+        return solid == null ? null : getImage(solid[0], solid[1], solid[2]);
+    }
+
+    /**
+     * Returns the shared image for a decoded tile if it has a single colour.
+     * @param image the decoded image
+     * @return the shared image, or the given image if it has several colours
+     */
+    public static BufferedImage share(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width > MAX_SIZE || height > MAX_SIZE) {
+            return image;
+        }
+        int[] row = new int[width];
+        int first = image.getRGB(0, 0);
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int pixel : row) {
+                // Fully transparent pixels are all alike, whatever their colour
+                if (pixel != first && ((pixel | first) >>> 24) != 0) {
+                    return image;
+                }
+            }
+        }
+        return getImage(width, height, (first >>> 24) == 0 ? 0 : first);
+    }
+
+    /**
+     * Returns the shared image of a colour and size, creating it if needed.
+     */
+    private static BufferedImage getImage(int width, int height, int argb) {
+        long key = ((long) width << 48) | ((long) height << 32) | (argb & 0xFFFFFFFFL);
+        synchronized (IMAGES) {
+            BufferedImage image = IMAGES.get(key);
+            if (image == null) {
+                image = new BufferedImage(width, height,
+                        (argb >>> 24) == 0xFF ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB_PRE);
+                int[] pixels = new int[width * height];
+                Arrays.fill(pixels, argb);
+                image.setRGB(0, 0, width, height, pixels, 0, width);
+                IMAGES.put(key, image);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Reads the chunks of a PNG image up to its image data, looking for a palette with a single entry.
+     * @param data the encoded image, from its position to its limit; the buffer is not modified
+     * @return width, height and ARGB colour of the image, or {@code null} if the image may have several colours
+     */
+    static int[] parseSolidPng(ByteBuffer data) {
+        ByteBuffer png = data.slice();
+        if (png.remaining() < PNG_SIGNATURE.length + 8 + 13) {
+            return null;
+        }
+        for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+            if (png.get(i) != PNG_SIGNATURE[i]) {
+                return null;
+            }
+        }
+        // IHDR is always the first chunk, and always 13 bytes long
+        int offset = PNG_SIGNATURE.length;
+        if (png.getInt(offset) != 13 || png.getInt(offset + 4) != chunkType("IHDR")) {
+            return null;
+        }
+        int width = png.getInt(offset + 8);
+        int height = png.getInt(offset + 12);
+        int colourType = png.get(offset + 17);
+        if (colourType != PNG_PALETTE || width <= 0 || height <= 0 || width > MAX_SIZE || height > MAX_SIZE) {
+            return null;
+        }
+        int rgb = -1;
+        int alpha = 0xFF;
+        offset += 12 + 13;
+        while (offset + 8 <= png.limit()) {
+            int length = png.getInt(offset);
+            int type = png.getInt(offset + 4);
+            // Compared as longs, so that huge lengths of corrupt chunks cannot overflow
+            if (length < 0 || offset + 12L + length > png.limit() || type == chunkType("IDAT")) {
+                break;
+            }
+            if (type == chunkType("PLTE")) {
+                if (length != 3) {
+                    return null;
+                }
+                rgb = (png.get(offset + 8) & 0xFF) << 16 | (png.get(offset + 9) & 0xFF) << 8 | (png.get(offset + 10) & 0xFF);
+            } else if (type == chunkType("tRNS") && length > 0) {
+                alpha = png.get(offset + 8) & 0xFF;
+            }
+            offset += 12 + length;
+        }
+        if (rgb < 0) {
+            return null;
+        }
+        // Every pixel refers to the only palette entry, or the image is invalid
+        return new int[] {width, height, alpha == 0 ? 0 : alpha << 24 | rgb};
+    }
+
+    private static int chunkType(String name) {
+        return name.charAt(0) << 24 | name.charAt(1) << 16 | name.charAt(2) << 8 | name.charAt(3);
+    }
+}
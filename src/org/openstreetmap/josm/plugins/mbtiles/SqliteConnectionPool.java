@@ -0,0 +1,99 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed-size pool of read-only connections to one sqlite file.
+ *
+ * Connections are opened lazily, up to the pool size. When all of them are borrowed,
+ * {@link #borrow()} waits until one is released.
+ */
+public class SqliteConnectionPool {
+    private final File file;
+    private final int size;
+    private final Map<String, String> pragmas;
+    private final LinkedBlockingQueue<SqliteReadConnection> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger opened = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool. No connection is opened yet.
+     * @param file the sqlite file
+     * @param size the maximum number of open connections
+     * @param pragmas the pragmas applied to every new connection
+     */
+    public SqliteConnectionPool(File file, int size, Map<String, String> pragmas) {
+        this.file = file;
+        this.size = Math.max(1, size);
+        this.pragmas = pragmas;
+    }
+
+    /**
+     * Borrows a connection. It must be given back with {@link #release(SqliteReadConnection)}.
+     * @return an idle connection
+     * @throws SqliteException if a new connection cannot be opened, or the pool is closed
+     */
+    public SqliteReadConnection borrow() throws SqliteException {
+        while (true) {
+            if (closed) {
+                throw new SqliteException("Connection pool for " + file + " is closed");
+            }
+            SqliteReadConnection conn = idle.poll();
+            if (conn != null) {
+                return conn;
+            }
+            int count = opened.get();
+            if (count < size) {
+                if (opened.compareAndSet(count, count + 1)) {
+                    try {
+                        return new SqliteReadConnection(SqliteUtils.obtainSqliteReadConnection(file, pragmas));
+                    } catch (SqliteException e) {
+                        opened.decrementAndGet();
+                        throw e;
+                    }
+                }
+            } else {
+                try {
+                    conn = idle.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SqliteException("Interrupted while waiting for a connection to " + file, e);
+                }
+                if (conn != null) {
+                    return conn;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives a borrowed connection back to the pool.
+     * @param conn the connection
+     */
+    public void release(SqliteReadConnection conn) {
+        if (closed) {
+            conn.close();
+        } else {
+            idle.offer(conn);
+            // close() may have drained the queue in between
+            if (closed && idle.remove(conn)) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections. Borrowed connections are closed when they are released.
+     */
+    public void close() {
+        closed = true;
+        SqliteReadConnection conn;
+        while ((conn = idle.poll()) != null) {
+            conn.close();
+        }
+    }
+}
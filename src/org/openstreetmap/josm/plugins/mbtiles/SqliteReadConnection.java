@@ -0,0 +1,68 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * A read-only sqlite connection that keeps its prepared statements around, so that
+ * the tile queries are parsed and planned only once per connection.
+ *
+ * Instances are not thread-safe: they must only be used by one thread at a time.
+ */
+public class SqliteReadConnection {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    public SqliteReadConnection(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Returns the underlying connection.
+     * @return the jdbc connection
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns a cached prepared statement for the given query, preparing it on first use.
+     * @param sql the query
+     * @return the prepared statement, with its parameters cleared
+     * @throws SQLException if the statement cannot be prepared
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        } else {
+            stmt.clearParameters();
+        }
+        return stmt;
+    }
+
+    /**
+     * Closes the cached statements and the connection.
+     */
+    public void close() {
+        for (PreparedStatement stmt : statements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                Logging.logWithStackTrace(Logging.LEVEL_WARN, "Error closing sqlite statement", e);
+            }
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            Logging.logWithStackTrace(Logging.LEVEL_WARN, "Error closing sqlite database", e);
+        }
+    }
+}
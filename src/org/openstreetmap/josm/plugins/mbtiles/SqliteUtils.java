@@ -4,11 +4,65 @@ import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
 
+import org.openstreetmap.josm.tools.Logging;
 import org.sqlite.SQLiteConfig;
 
 public class SqliteUtils {
+	   private static volatile boolean driverLoaded;
+
 	   public static Connection obtainSqliteDbConnection(File dbFile, boolean readOnly) throws SqliteException {
+	        SQLiteConfig config = new SQLiteConfig();
+	        config.setReadOnly(readOnly);
+	        return obtainSqliteDbConnection(dbFile, config);
+	    }
+
+	   /**
+	    * Opens a read-only connection and applies the given pragmas to it.
+	    * @param dbFile the sqlite file
+	    * @param pragmas pragma names and values, e.g. {@code mmap_size} and {@code 268435456}
+	    * @return the connection
+	    * @throws SqliteException if the file cannot be opened or a pragma cannot be applied
+	    */
+	   public static Connection obtainSqliteReadConnection(File dbFile, Map<String, String> pragmas) throws SqliteException {
+	        Connection connection = obtainSqliteDbConnection(dbFile, true);
+	        try (Statement stmt = connection.createStatement()) {
+	            for (Map.Entry<String, String> pragma : pragmas.entrySet()) {
+	                stmt.execute("PRAGMA " + pragma.getKey() + "=" + pragma.getValue());
+	            }
+	        } catch (SQLException e) {
+	            try {
+	                connection.close();
+	            } catch (SQLException e1) {
+	                Logging.logWithStackTrace(Logging.LEVEL_WARN, "Error closing sqlite database", e1);
+	            }
+	            throw new SqliteException("Could not configure sqlite database.", e);
+	        }
+	        return connection;
+	    }
+
+	   /**
+	    * Opens a connection tuned for writing a new file in bulk: no rollback journal, no syncs
+	    * and an exclusive lock. If the process dies during the load, the file is lost.
+	    * @param dbFile the sqlite file, which should not exist yet so that the page size applies
+	    * @param pageSize the page size of the new file, in bytes
+	    * @return the connection
+	    * @throws SqliteException if the file cannot be opened
+	    */
+	   public static Connection obtainSqliteBulkWriteConnection(File dbFile, int pageSize) throws SqliteException {
+	        SQLiteConfig config = new SQLiteConfig();
+	        config.setReadOnly(false);
+	        config.setPageSize(pageSize);
+	        config.setJournalMode(SQLiteConfig.JournalMode.OFF);
+	        config.setSynchronous(SQLiteConfig.SynchronousMode.OFF);
+	        config.setLockingMode(SQLiteConfig.LockingMode.EXCLUSIVE);
+	        config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+	        return obtainSqliteDbConnection(dbFile, config);
+	    }
+
+	   private static Connection obtainSqliteDbConnection(File dbFile, SQLiteConfig config) throws SqliteException {
 	        // Temporarily set the context classloader to the plugin's classloader so that
 	        // sqlite-jdbc's JNI native library can find all required classes (e.g. org.sqlite.Collation)
 	        // when running inside JOSM's PluginClassLoader environment.
@@ -16,10 +70,10 @@ public class SqliteUtils {
 	        ClassLoader originalClassLoader = currentThread.getContextClassLoader();
 	        currentThread.setContextClassLoader(SqliteUtils.class.getClassLoader());
 	        try {
-	            Class.forName("org.sqlite.JDBC");
-
-	            SQLiteConfig config = new SQLiteConfig();
-	            config.setReadOnly(readOnly);
+	            if (!driverLoaded) {
+	                Class.forName("org.sqlite.JDBC");
+	                driverLoaded = true;
+	            }
 	            return DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath(), config.toProperties());
 	        } catch (ClassNotFoundException e1) {
 	            throw new SqliteException("Could not load sqlite driver.", e1);
@@ -0,0 +1,449 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * A tile database opened by a layer.
+ *
+ * Reads borrow a connection from a {@link SqliteConnectionPool}, so that concurrent loaders
+ * don't serialize on one connection. Each pooled connection keeps its prepared statements.
+ */
+public abstract class TileArchive {
+    private final File file;
+    private final SqliteConnectionPool pool;
+    private final AtomicBoolean existenceIndexRequested = new AtomicBoolean();
+    private volatile TileExistenceIndex existenceIndex;
+    private final AtomicBoolean rowidIndexRequested = new AtomicBoolean();
+    private volatile TileRowidIndex rowidIndex;
+    /** Statements of the tile reads and scans in progress and the threads running them, so that they can be interrupted. */
+    private final Map<Statement, Thread> runningStatements = new ConcurrentHashMap<>();
+    private final AtomicLong interruptCount = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Opens the archive. A first connection is opened right away to check that the file can be read.
+     * @param file the sqlite file
+     * @param options the tuning options
+     * @throws SqliteException if the file cannot be opened
+     */
+    protected TileArchive(File file, ArchiveOptions options) throws SqliteException {
+        this.file = file;
+        this.pool = new SqliteConnectionPool(file, options.getConnections(), options.getReadPragmas());
+        pool.release(pool.borrow());
+    }
+
+    /**
+     * Returns the sqlite file of this archive.
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the query selecting the image of one tile. Its parameters are the stored zoom level,
+     * x and y of the tile, and it must have one result column.
+     * @return the tile query
+     */
+    protected abstract String getTileQuery();
+
+    /**
+     * Returns the query selecting the tiles of a rectangle at one zoom level. Its parameters are the
+     * stored zoom level, the minimum and maximum x and the minimum and maximum stored y. The result
+     * columns are x, stored y and the image.
+     * @return the range query
+     */
+    protected abstract String getRangeQuery();
+
+    /**
+     * Returns the query computing the tile rectangle of every zoom level. It has no parameters and its
+     * result columns are the stored zoom level, the minimum and maximum x and the minimum and maximum stored y.
+     * @return the extents query
+     */
+    protected abstract String getExtentsQuery();
+
+    /**
+     * Returns the query selecting the position of every tile, without the images. It has no parameters
+     * and its result columns are the stored zoom level, x and stored y.
+     * @return the keys query
+     */
+    protected abstract String getKeysQuery();
+
+    /**
+     * Returns the query selecting the rowid and position of every tile, if tiles can be read by rowid.
+     * It has no parameters and its result columns are the rowid, the stored zoom level, x and stored y.
+     * @return the rowid query, or {@code null} if the tiles have no stable rowid, e.g. because they are
+     * read through a view
+     */
+    protected String getRowidKeysQuery() {
+        return null;
+    }
+
+    /**
+     * Returns the query selecting the image of the tile with the given rowid.
+     * @return the query by rowid, or {@code null} if {@link #getRowidKeysQuery()} is {@code null}
+     */
+    protected String getRowidTileQuery() {
+        return null;
+    }
+
+    /**
+     * Converts between JOSM's zoom level and the zoom level stored in the database.
+     * The conversion must be its own inverse.
+     * @param zoom the zoom level
+     * @return the stored zoom level
+     */
+    protected abstract int toStoredZoom(int zoom);
+
+    /**
+     * Converts between JOSM's y coordinate and the y coordinate stored in the database.
+     * The conversion must be its own inverse.
+     * @param zoom the zoom level
+     * @param y the y coordinate
+     * @return the converted y coordinate
+     */
+    protected abstract int toStoredY(int zoom, int y);
+
+    /**
+     * Reads the encoded image of a tile.
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile, in JOSM's tile numbering
+     * @param y the y coordinate of the tile, in JOSM's tile numbering
+     * @return the image bytes, or {@code null} if the archive has no such tile
+     * @throws SQLException if the query fails
+     */
+    public byte[] readTile(int zoom, int x, int y) throws SQLException {
+        TileRowidIndex rowids = rowidIndex;
+        long rowid = rowids == null ? TileRowidIndex.NOT_FOUND : rowids.get(zoom, x, y);
+        if (rowids != null && rowid == TileRowidIndex.NOT_FOUND) {
+            return null;
+        }
+        SqliteReadConnection conn = borrow();
+        try {
+            PreparedStatement stmt;
+            if (rowids != null) {
+                stmt = conn.prepare(getRowidTileQuery());
+                stmt.setLong(1, rowid);
+            } else {
+                stmt = conn.prepare(getTileQuery());
+                stmt.setInt(1, toStoredZoom(zoom));
+                stmt.setInt(2, x);
+                stmt.setInt(3, toStoredY(zoom, y));
+            }
+            runningStatements.put(stmt, Thread.currentThread());
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getBytes(1) : null;
+            } finally {
+                runningStatements.remove(stmt);
+            }
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    /**
+     * Reads all tiles of a rectangle at one zoom level with a single range query.
+     * Rows are handed to the consumer in the order sqlite reads them; missing tiles are skipped.
+     * @param zoom the zoom level
+     * @param minX the minimum x coordinate, in JOSM's tile numbering
+     * @param minY the minimum y coordinate, in JOSM's tile numbering
+     * @param maxX the maximum x coordinate, in JOSM's tile numbering
+     * @param maxY the maximum y coordinate, in JOSM's tile numbering
+     * @param consumer receives the tiles found
+     * @throws SQLException if the query fails
+     */
+    public void readTiles(int zoom, int minX, int minY, int maxX, int maxY, TileDataConsumer consumer) throws SQLException {
+        int storedY1 = toStoredY(zoom, minY);
+        int storedY2 = toStoredY(zoom, maxY);
+        SqliteReadConnection conn = borrow();
+        try {
+            PreparedStatement stmt = conn.prepare(getRangeQuery());
+            stmt.setInt(1, toStoredZoom(zoom));
+            stmt.setInt(2, minX);
+            stmt.setInt(3, maxX);
+            stmt.setInt(4, Math.min(storedY1, storedY2));
+            stmt.setInt(5, Math.max(storedY1, storedY2));
+            runningStatements.put(stmt, Thread.currentThread());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(rs.getInt(1), toStoredY(zoom, rs.getInt(2)), rs.getBytes(3));
+                }
+            } finally {
+                runningStatements.remove(stmt);
+            }
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    /**
+     * Interrupts the tile reads in progress, which then fail with an {@link SQLException}.
+     * Readers can tell this apart from other failures with {@link #getInterruptCount()}.
+     */
+    public void cancelRunningQueries() {
+        interruptCount.incrementAndGet();
+        for (Statement stmt : runningStatements.keySet()) {
+            cancel(stmt);
+        }
+    }
+
+    /**
+     * Interrupts the tile read or scan a thread has in progress, like {@link #cancelRunningQueries()}.
+     * @param thread the thread running the query
+     */
+    public void cancelRunningQueries(Thread thread) {
+        interruptCount.incrementAndGet();
+        for (Map.Entry<Statement, Thread> entry : runningStatements.entrySet()) {
+            if (entry.getValue() == thread) {
+                cancel(entry.getKey());
+            }
+        }
+    }
+
+    private static void cancel(Statement stmt) {
+        try {
+            stmt.cancel();
+        } catch (SQLException e) {
+            Logging.trace(e);
+        }
+    }
+
+    /**
+     * Returns how often the queries of this archive have been interrupted. A read that fails
+     * while this number changes has most likely been interrupted.
+     * @return the number of interruptions
+     */
+    public long getInterruptCount() {
+        return interruptCount.get();
+    }
+
+    /**
+     * Computes the tile rectangle of every zoom level. This reads the whole tile index, or the whole
+     * table if there is no index, so it should not run on a thread the user is waiting for.
+     * @return the extents, in JOSM's tile numbering
+     * @throws SQLException if the query fails
+     */
+    public TileExtents scanExtents() throws SQLException {
+        TileExtents extents = new TileExtents();
+        scan(getExtentsQuery(), rs -> {
+            int zoom = toStoredZoom(rs.getInt(1));
+            int y1 = toStoredY(zoom, rs.getInt(4));
+            int y2 = toStoredY(zoom, rs.getInt(5));
+            extents.set(zoom, rs.getInt(2), Math.min(y1, y2), rs.getInt(3), Math.max(y1, y2));
+            return true;
+        });
+        return extents;
+    }
+
+    /**
+     * Builds the existence index of this archive by reading the position of every tile.
+     * @param maxBytes the maximum size of the index
+     * @return the index, or {@code null} if it would exceed the maximum size
+     * @throws SQLException if the query fails
+     */
+    public TileExistenceIndex scanExistence(long maxBytes) throws SQLException {
+        TileExistenceIndex index = new TileExistenceIndex();
+        boolean complete = scan(getKeysQuery(), rs -> {
+            int zoom = toStoredZoom(rs.getInt(1));
+            index.add(zoom, rs.getInt(2), toStoredY(zoom, rs.getInt(3)));
+            return index.getMemoryBytes() <= maxBytes;
+        });
+        return complete ? index : null;
+    }
+
+    /**
+     * Runs a query over the whole archive. The query is interrupted when the archive is closed,
+     * so that a scan of a file the user has closed does not hold up the scans of other files.
+     * @param query the query
+     * @param handler receives the rows
+     * @return {@code false} if the handler stopped the scan
+     * @throws SQLException if the query fails or the archive is closed
+     */
+    private boolean scan(String query, ScanRowHandler handler) throws SQLException {
+        SqliteReadConnection conn = borrow();
+        try (PreparedStatement stmt = conn.getConnection().prepareStatement(query)) {
+            runningStatements.put(stmt, Thread.currentThread());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (closed) {
+                        throw new SQLException("Archive " + file + " has been closed");
+                    }
+                    if (!handler.accept(rs)) {
+                        return false;
+                    }
+                }
+            } finally {
+                runningStatements.remove(stmt);
+            }
+        } finally {
+            pool.release(conn);
+        }
+        return true;
+    }
+
+    /**
+     * Starts building the existence index on the background executor, unless it has been requested before.
+     * Until it is built, {@link #getExistenceIndex()} returns {@code null}.
+     * @param maxBytes the maximum size of the index
+     */
+    public void requestExistenceIndex(long maxBytes) {
+        if (!existenceIndexRequested.compareAndSet(false, true)) {
+            return;
+        }
+        TileLoaderExecutor.getBackgroundExecutor().execute(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                TileExistenceIndex index = scanExistence(maxBytes);
+                if (index == null) {
+                    Logging.info("Not indexing the tiles of " + file + ", the index would exceed " + maxBytes + " bytes");
+                } else {
+                    Logging.info("Indexed " + index.getTileCount() + " tiles of " + file + " in "
+                            + (System.currentTimeMillis() - start) + " ms (" + index.getMemoryBytes() + " bytes)");
+                    existenceIndex = index;
+                }
+            } catch (SQLException e) {
+                if (!closed) {
+                    Logging.warn("Cannot index the tiles of " + file + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the existence index of this archive.
+     * @return the index, or {@code null} if it has not been built
+     */
+    public TileExistenceIndex getExistenceIndex() {
+        return existenceIndex;
+    }
+
+    /**
+     * Builds the rowid index of this archive.
+     * @param maxBytes the maximum size of the index
+     * @return the index, or {@code null} if it would exceed the maximum size or the archive does
+     * not support reading tiles by rowid
+     * @throws SQLException if the query fails
+     */
+    public TileRowidIndex scanRowids(long maxBytes) throws SQLException {
+        String query = getRowidKeysQuery();
+        if (query == null) {
+            return null;
+        }
+        TileRowidIndex index = new TileRowidIndex(maxBytes);
+        boolean complete = scan(query, rs -> {
+            int zoom = toStoredZoom(rs.getInt(2));
+            return index.put(zoom, rs.getInt(3), toStoredY(zoom, rs.getInt(4)), rs.getLong(1));
+        });
+        return complete ? index : null;
+    }
+
+    /**
+     * Starts building the rowid index on the background executor, unless it has been requested before.
+     * Until it is built, tiles are read through the tile index of the database.
+     * @param maxBytes the maximum size of the index
+     */
+    public void requestRowidIndex(long maxBytes) {
+        if (getRowidKeysQuery() == null || !rowidIndexRequested.compareAndSet(false, true)) {
+            return;
+        }
+        TileLoaderExecutor.getBackgroundExecutor().execute(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                TileRowidIndex index = scanRowids(maxBytes);
+                if (index == null) {
+                    Logging.info("Not indexing the rowids of " + file + ", the index would exceed " + maxBytes + " bytes");
+                } else {
+                    Logging.info("Indexed the rowids of " + index.size() + " tiles of " + file + " in "
+                            + (System.currentTimeMillis() - start) + " ms (" + index.getMemoryBytes() + " bytes)");
+                    rowidIndex = index;
+                }
+            } catch (SQLException e) {
+                if (!closed) {
+                    Logging.warn("Cannot index the rowids of " + file + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Borrows a read connection, e.g. to read the metadata of the archive.
+     * It must be given back with {@link #releaseConnection(SqliteReadConnection)}.
+     * @return a read connection
+     * @throws SqliteException if no connection can be opened
+     */
+    public SqliteReadConnection borrowConnection() throws SqliteException {
+        return pool.borrow();
+    }
+
+    /**
+     * Gives back a connection obtained from {@link #borrowConnection()}.
+     * @param conn the connection
+     */
+    public void releaseConnection(SqliteReadConnection conn) {
+        pool.release(conn);
+    }
+
+    private SqliteReadConnection borrow() throws SQLException {
+        try {
+            return pool.borrow();
+        } catch (SqliteException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Receives the tiles read by {@link TileArchive#readTiles}.
+     */
+    @FunctionalInterface
+    public interface TileDataConsumer {
+        /**
+         * Called for each tile found, while the query holds a pooled connection, so it should not
+         * do any slow work such as decoding the tile.
+         * @param x the x coordinate of the tile, in JOSM's tile numbering
+         * @param y the y coordinate of the tile, in JOSM's tile numbering
+         * @param data the image bytes
+         */
+        void accept(int x, int y, byte[] data);
+    }
+
+    /**
+     * Receives the rows of a scan.
+     */
+    @FunctionalInterface
+    private interface ScanRowHandler {
+        /**
+         * Called for each row.
+         * @param rs the result set, positioned on the row
+         * @return {@code false} to stop the scan
+         * @throws SQLException if the row cannot be read
+         */
+        boolean accept(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Returns whether this archive has been closed.
+     * @return {@code true} after {@link #close()}
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes all connections of this archive, interrupting the reads and scans in progress.
+     */
+    public void close() {
+        closed = true;
+        cancelRunningQueries();
+        pool.close();
+    }
+}
@@ -0,0 +1,144 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.openstreetmap.josm.data.preferences.LongProperty;
+
+/**
+ * Size-bounded LRU cache of encoded tile images, shared by all archive layers.
+ *
+ * The bytes are kept in direct buffers outside of the Java heap, so that a few hundred
+ * megabytes of recently viewed tiles neither grow the heap nor lengthen GC pauses.
+ */
+public class TileDataCache {
+
+    /** Maximum number of bytes kept in the cache, 0 to disable it. */
+    public static final LongProperty MAX_BYTES = new LongProperty("mbtiles.cache.bytes", 128L * 1024 * 1024);
+
+    private static TileDataCache instance;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, ByteBuffer> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long usedBytes;
+
+    /**
+     * Creates a cache.
+     * @param maxBytes the maximum number of bytes kept
+     */
+    public TileDataCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cache shared by all layers, sized from the preferences.
+     * @return the shared cache
+     */
+    public static synchronized TileDataCache getInstance() {
+        if (instance == null) {
+            instance = new TileDataCache(MAX_BYTES.get());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the cached bytes of a tile without copying them, e.g. to decode them in place.
+     * @param file the absolute path of the archive
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return a read-only view of the cached bytes, or {@code null} if the tile is not cached
+     */
+    public ByteBuffer getBuffer(String file, int zoom, int x, int y) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = entries.get(new Key(file, zoom, x, y));
+        }
+        // An evicted buffer stays valid as long as the view refers to it
+        return buffer == null ? null : buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Adds the bytes of a tile, evicting the least recently used tiles if needed.
+     * @param file the absolute path of the archive
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param data the encoded image
+     */
+    public void put(String file, int zoom, int x, int y, byte[] data) {
+        if (data.length == 0 || data.length > maxBytes) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+        synchronized (this) {
+            ByteBuffer previous = entries.put(new Key(file, zoom, x, y), buffer);
+            if (previous != null) {
+                usedBytes -= previous.capacity();
+            }
+            usedBytes += buffer.capacity();
+            for (Iterator<ByteBuffer> it = entries.values().iterator(); usedBytes > maxBytes && it.hasNext();) {
+                usedBytes -= it.next().capacity();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all tiles of an archive.
+     * @param file the absolute path of the archive
+     */
+    public synchronized void invalidate(String file) {
+        for (Iterator<Map.Entry<Key, ByteBuffer>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Key, ByteBuffer> entry = it.next();
+            if (entry.getKey().file.equals(file)) {
+                usedBytes -= entry.getValue().capacity();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently cached.
+     * @return the cached bytes
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private static final class Key {
+        private final String file;
+        private final int zoom;
+        private final int x;
+        private final int y;
+
+        Key(String file, int zoom, int x, int y) {
+            this.file = file;
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return zoom == other.zoom && x == other.x && y == other.y && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, zoom, x, y);
+        }
+    }
+}
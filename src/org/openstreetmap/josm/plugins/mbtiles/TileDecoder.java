@@ -0,0 +1,191 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.openstreetmap.josm.data.preferences.BooleanProperty;
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Decodes tile images on a thread pool sized for the CPU, separate from the loader threads
+ * reading the tiles, so that the disk is kept busy while the images are decoded on all cores.
+ *
+ * Each decoder thread keeps one {@link ImageReader} per image format and reuses it for every
+ * tile of that format, instead of looking up and creating a new reader for each image. The
+ * readers read the encoded bytes in place, see {@link ByteBufferImageInputStream}. Optionally,
+ * the decoded images are converted on the decoder thread to the image type drawn fastest.
+ */
+public final class TileDecoder {
+
+    /** Number of threads decoding tile images, 0 for one per processor. */
+    public static final IntegerProperty THREADS = new IntegerProperty("mbtiles.decoder.threads", 0);
+    /** Whether decoded images are converted to the image type of the screen, see {@link #toCompatible(BufferedImage)}. */
+    public static final BooleanProperty COMPATIBLE = new BooleanProperty("mbtiles.decoder.compatible", false);
+
+    /**
+     * Images waiting for a decoder thread per thread. When all are busy and the queue is full,
+     * the loader thread decodes the image itself, which slows reading down to the decoding speed.
+     */
+    private static final int QUEUE_PER_THREAD = 16;
+
+    private static final ThreadLocal<Map<TileFormat, ImageReader>> READERS =
+            ThreadLocal.withInitial(() -> new EnumMap<>(TileFormat.class));
+
+    private static ThreadPoolExecutor executor;
+    private static GraphicsConfiguration graphicsConfiguration;
+    private static boolean graphicsConfigurationLooked;
+
+    private TileDecoder() {
+        // Hide default constructor for utility classes
+    }
+
+    /**
+     * Returns the shared executor, creating it on first use.
+     * @return the executor decoding the tile images
+     */
+    public static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int threads = THREADS.get() > 0 ? THREADS.get() : Runtime.getRuntime().availableProcessors();
+            executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD),
+                    Utils.newThreadFactory("mbtiles-decoder-%d", Thread.NORM_PRIORITY),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Decodes an image with the reader of the current thread for its format.
+     * @param data the encoded image
+     * @return the decoded image
+     * @throws IOException if the image cannot be decoded
+     */
+    public static BufferedImage decode(byte[] data) throws IOException {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Decodes an image in place, without copying its bytes, with the reader of the current thread for its format.
+     * @param data the encoded image, from its position to its limit; the buffer itself is not modified
+     * @return the decoded image
+     * @throws IOException if the image cannot be decoded
+     */
+    public static BufferedImage decode(ByteBuffer data) throws IOException {
+        TileFormat format = TileFormat.detect(data);
+        ImageReader reader = format == null ? null : getReader(format);
+        BufferedImage image;
+        if (reader == null) {
+            try (ImageInputStream input = new ByteBufferImageInputStream(data)) {
+                image = ImageIO.read(input);
+            }
+        } else {
+            boolean failed = true;
+            try (ImageInputStream input = new ByteBufferImageInputStream(data)) {
+                reader.setInput(input, true, true);
+                image = reader.read(0, reader.getDefaultReadParam());
+                failed = false;
+            } catch (RuntimeException e) {
+                // Some readers throw unchecked exceptions on corrupt images
+                throw new IOException(e);
+            } finally {
+                if (failed) {
+                    // The reader may be left in a broken state, don't reuse it
+                    READERS.get().remove(format);
+                    reader.dispose();
+                } else {
+                    reader.setInput(null);
+                }
+            }
+        }
+        if (image == null) {
+            throw new IOException("Unsupported tile image format");
+        }
+        return image;
+    }
+
+    /**
+     * Converts a decoded image to the image type the screen draws fastest, so that Java2D does not
+     * convert it again on every repaint: the compatible opaque type of the screen for opaque
+     * images, premultiplied ARGB for the others.
+     * @param image the decoded image
+     * @return the converted image, or the given image if it has the right type already
+     */
+    public static BufferedImage toCompatible(BufferedImage image) {
+        return toCompatible(image, getGraphicsConfiguration());
+    }
+
+    static BufferedImage toCompatible(BufferedImage image, GraphicsConfiguration configuration) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage converted;
+        if (image.getTransparency() == Transparency.OPAQUE) {
+            if (configuration != null) {
+                ColorModel model = configuration.getColorModel(Transparency.OPAQUE);
+                if (model.equals(image.getColorModel()) && model.isCompatibleSampleModel(image.getSampleModel())) {
+                    return image;
+                }
+                converted = configuration.createCompatibleImage(width, height, Transparency.OPAQUE);
+            } else if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+                return image;
+            } else {
+                converted = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            }
+        } else if (image.getType() == BufferedImage.TYPE_INT_ARGB_PRE) {
+            return image;
+        } else {
+            converted = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        Graphics2D g = converted.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return converted;
+    }
+
+    private static synchronized GraphicsConfiguration getGraphicsConfiguration() {
+        if (!graphicsConfigurationLooked) {
+            graphicsConfigurationLooked = true;
+            if (!GraphicsEnvironment.isHeadless()) {
+                graphicsConfiguration = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                        .getDefaultScreenDevice().getDefaultConfiguration();
+            }
+        }
+        return graphicsConfiguration;
+    }
+
+    private static ImageReader getReader(TileFormat format) {
+        Map<TileFormat, ImageReader> readers = READERS.get();
+        ImageReader reader = readers.get(format);
+        if (reader == null) {
+            Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName(format.getName());
+            if (!it.hasNext()) {
+                return null;
+            }
+            reader = it.next();
+            readers.put(format, reader);
+        }
+        return reader;
+    }
+}
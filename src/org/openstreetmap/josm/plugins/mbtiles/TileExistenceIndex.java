@@ -0,0 +1,101 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openstreetmap.josm.data.preferences.BooleanProperty;
+import org.openstreetmap.josm.data.preferences.LongProperty;
+
+/**
+ * The set of tiles present in an archive, so that loaders can answer requests for missing
+ * tiles without a query.
+ *
+ * Each zoom level is split into blocks of 64x64 tiles and only blocks containing at least one
+ * tile are kept, as a bitmap of 64 longs. Sparse archives, e.g. along a survey corridor, thus
+ * need little memory even at high zoom levels.
+ */
+public class TileExistenceIndex {
+
+    /** Whether the loaders build an existence index for each archive. */
+    public static final BooleanProperty ENABLED = new BooleanProperty("mbtiles.loader.existence_index", false);
+    /** Maximum size of one index; larger archives are read without an index. */
+    public static final LongProperty MAX_BYTES = new LongProperty("mbtiles.loader.existence_index.bytes", 32L * 1024 * 1024);
+
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+    private static final int BLOCK_BYTES = 8 << BLOCK_SHIFT;
+    private static final int MAX_ZOOM = 30;
+
+    private final Map<Long, long[]>[] blocks;
+    private long blockCount;
+    private long tileCount;
+
+    /**
+     * Creates an empty index.
+     */
+    @SuppressWarnings("unchecked")
+    public TileExistenceIndex() {
+        blocks = new Map[MAX_ZOOM + 1];
+    }
+
+    /**
+     * Marks a tile as present.
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     */
+    public void add(int zoom, int x, int y) {
+        if (zoom < 0 || zoom > MAX_ZOOM) {
+            return;
+        }
+        if (blocks[zoom] == null) {
+            blocks[zoom] = new HashMap<>();
+        }
+        long[] block = blocks[zoom].get(blockKey(x, y));
+        if (block == null) {
+            block = new long[1 << BLOCK_SHIFT];
+            blocks[zoom].put(blockKey(x, y), block);
+            blockCount++;
+        }
+        long bit = 1L << (x & BLOCK_MASK);
+        if ((block[y & BLOCK_MASK] & bit) == 0) {
+            block[y & BLOCK_MASK] |= bit;
+            tileCount++;
+        }
+    }
+
+    /**
+     * Returns whether a tile is present. Must not be called while the index is still being built.
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return {@code true} if the archive has the tile
+     */
+    public boolean contains(int zoom, int x, int y) {
+        if (zoom < 0 || zoom > MAX_ZOOM || blocks[zoom] == null) {
+            return false;
+        }
+        long[] block = blocks[zoom].get(blockKey(x, y));
+        return block != null && (block[y & BLOCK_MASK] & (1L << (x & BLOCK_MASK))) != 0;
+    }
+
+    /**
+     * Returns the number of tiles present.
+     * @return the tile count
+     */
+    public long getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Returns the approximate memory used by the bitmaps.
+     * @return the size in bytes
+     */
+    public long getMemoryBytes() {
+        return blockCount * BLOCK_BYTES;
+    }
+
+    private static long blockKey(int x, int y) {
+        return ((long) (x >>> BLOCK_SHIFT) << 32) | (y >>> BLOCK_SHIFT);
+    }
+}
@@ -0,0 +1,145 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
+
+/**
+ * The rectangle of tiles covered at each zoom level of an archive, in JOSM's (XYZ) tile numbering.
+ */
+public class TileExtents {
+    private final TreeMap<Integer, int[]> extents = new TreeMap<>();
+
+    /**
+     * Extends the extent of a zoom level to include a tile.
+     * @param zoom the zoom level
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     */
+    public void add(int zoom, int x, int y) {
+        int[] extent = extents.get(zoom);
+        if (extent == null) {
+            extents.put(zoom, new int[] {x, y, x, y});
+        } else {
+            extent[0] = Math.min(extent[0], x);
+            extent[1] = Math.min(extent[1], y);
+            extent[2] = Math.max(extent[2], x);
+            extent[3] = Math.max(extent[3], y);
+        }
+    }
+
+    /**
+     * Sets the extent of a zoom level.
+     * @param zoom the zoom level
+     * @param minX the minimum x coordinate
+     * @param minY the minimum y coordinate
+     * @param maxX the maximum x coordinate
+     * @param maxY the maximum y coordinate
+     */
+    public void set(int zoom, int minX, int minY, int maxX, int maxY) {
+        extents.put(zoom, new int[] {minX, minY, maxX, maxY});
+    }
+
+    public boolean isEmpty() {
+        return extents.isEmpty();
+    }
+
+    public int getMinZoom() {
+        return extents.firstKey();
+    }
+
+    public int getMaxZoom() {
+        return extents.lastKey();
+    }
+
+    /**
+     * Returns the extent of a zoom level.
+     * @param zoom the zoom level
+     * @return minimum x, minimum y, maximum x and maximum y, or {@code null} if the zoom level has no tiles
+     */
+    public int[] getExtent(int zoom) {
+        int[] extent = extents.get(zoom);
+        return extent == null ? null : extent.clone();
+    }
+
+    /**
+     * Returns the area covered by the tiles of all zoom levels.
+     * @return west, south, east and north in degrees, or {@code null} if there are no tiles
+     */
+    public double[] getBounds() {
+        double[] bounds = null;
+        for (Map.Entry<Integer, int[]> entry : extents.entrySet()) {
+            int zoom = entry.getKey();
+            int[] extent = entry.getValue();
+            // Pixel coordinates exceed the int range from zoom level 23 on
+            double tileSize = 256;
+            double west = OsmMercator.MERCATOR_256.xToLon(extent[0] * tileSize, zoom);
+            double north = OsmMercator.MERCATOR_256.yToLat(extent[1] * tileSize, zoom);
+            double east = OsmMercator.MERCATOR_256.xToLon((extent[2] + 1L) * tileSize, zoom);
+            double south = OsmMercator.MERCATOR_256.yToLat((extent[3] + 1L) * tileSize, zoom);
+            if (bounds == null) {
+                bounds = new double[] {west, south, east, north};
+            } else {
+                bounds[0] = Math.min(bounds[0], west);
+                bounds[1] = Math.min(bounds[1], south);
+                bounds[2] = Math.max(bounds[2], east);
+                bounds[3] = Math.max(bounds[3], north);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Returns the bounds in the MBTiles {@code bounds} metadata format.
+     * @return "left,bottom,right,top", or {@code null} if there are no tiles
+     */
+    public String getBoundsString() {
+        double[] bounds = getBounds();
+        if (bounds == null) {
+            return null;
+        }
+        return String.format(Locale.ROOT, "%.6f,%.6f,%.6f,%.6f", bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    /**
+     * Serializes the extents as "zoom/minX/minY/maxX/maxY" entries separated by semicolons.
+     * @return the serialized extents
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, int[]> entry : extents.entrySet()) {
+            int[] extent = entry.getValue();
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(entry.getKey()).append('/').append(extent[0]).append('/').append(extent[1])
+                    .append('/').append(extent[2]).append('/').append(extent[3]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses extents serialized by {@link #toString()}.
+     * @param value the serialized extents
+     * @return the extents
+     * @throws IllegalArgumentException if the value cannot be parsed
+     */
+    public static TileExtents parse(String value) {
+        TileExtents result = new TileExtents();
+        if (value == null || value.isEmpty()) {
+            return result;
+        }
+        for (String entry : value.split(";")) {
+            String[] parts = entry.split("/");
+            if (parts.length != 5) {
+                throw new IllegalArgumentException("Invalid tile extent: " + entry);
+            }
+            result.set(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                    Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,130 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Keeps the tile extents of archives whose metadata lacks the zoom range or bounds in small
+ * sidecar files, so that they only have to be computed once per archive.
+ *
+ * An entry is keyed by the size and modification time of the archive and is ignored once
+ * the archive changes.
+ */
+public class TileExtentsCache {
+
+    private static TileExtentsCache instance;
+
+    private final File directory;
+
+    /**
+     * Creates a cache.
+     * @param directory the directory of the sidecar files, created when the first entry is stored
+     */
+    public TileExtentsCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the cache kept in JOSM's cache directory.
+     * @return the shared cache
+     */
+    public static synchronized TileExtentsCache getInstance() {
+        if (instance == null) {
+            instance = new TileExtentsCache(new File(Config.getDirs().getCacheDirectory(true), "mbtiles"));
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the stored extents of an archive.
+     * @param archive the sqlite file
+     * @return the extents, or {@code null} if none are stored or the archive changed since
+     */
+    public TileExtents get(File archive) {
+        File sidecar = getSidecar(archive);
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(sidecar)) {
+            properties.load(in);
+            if (!archive.getAbsolutePath().equals(properties.getProperty("path"))
+                    || !Long.toString(archive.length()).equals(properties.getProperty("size"))
+                    || !Long.toString(archive.lastModified()).equals(properties.getProperty("mtime"))) {
+                return null;
+            }
+            return TileExtents.parse(properties.getProperty("extents"));
+        } catch (IOException | IllegalArgumentException e) {
+            Logging.warn("Ignoring unreadable tile extents " + sidecar + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the extents of an archive.
+     * @param archive the sqlite file
+     * @param extents the extents
+     */
+    public void put(File archive, TileExtents extents) {
+        File sidecar = getSidecar(archive);
+        Properties properties = new Properties();
+        properties.setProperty("path", archive.getAbsolutePath());
+        properties.setProperty("size", Long.toString(archive.length()));
+        properties.setProperty("mtime", Long.toString(archive.lastModified()));
+        properties.setProperty("extents", extents.toString());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Logging.warn("Cannot create directory " + directory);
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(sidecar)) {
+            properties.store(out, null);
+        } catch (IOException e) {
+            Logging.warn("Cannot write tile extents " + sidecar + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the extents of an archive, computing them on a low priority background thread
+     * if they are not stored yet. Nothing is reported if the scan fails, e.g. because the
+     * archive was closed in the meantime.
+     * @param archive the archive
+     * @param consumer receives the extents, on the calling thread if they are stored and on the
+     * background thread otherwise
+     */
+    public void getInBackground(TileArchive archive, Consumer<TileExtents> consumer) {
+        TileExtents stored = get(archive.getFile());
+        if (stored != null) {
+            consumer.accept(stored);
+            return;
+        }
+        TileLoaderExecutor.getBackgroundExecutor().execute(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                TileExtents extents = archive.scanExtents();
+                Logging.info("Computed tile extents of " + archive.getFile() + " in " + (System.currentTimeMillis() - start) + " ms");
+                put(archive.getFile(), extents);
+                consumer.accept(extents);
+            } catch (SQLException e) {
+                // A scan interrupted because the layer was removed is not worth a warning
+                if (!archive.isClosed()) {
+                    Logging.warn("Cannot compute tile extents of " + archive.getFile() + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private File getSidecar(File archive) {
+        String path = archive.getAbsolutePath();
+        return new File(directory, archive.getName() + '-' + Integer.toHexString(path.hashCode()) + ".properties");
+    }
+}
@@ -0,0 +1,72 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Image formats found in tile archives, recognized from their first bytes.
+ */
+public enum TileFormat {
+    PNG("png"),
+    JPG("jpg"),
+    WEBP("webp"),
+    GIF("gif");
+
+    private final String name;
+
+    TileFormat(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of the format as used by the MBTiles {@code format} metadata.
+     * @return the format name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Recognizes the format of an encoded image.
+     * @param data the encoded image
+     * @return the format, or {@code null} if it is not recognized
+     */
+    public static TileFormat detect(byte[] data) {
+        return data == null ? null : detect(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Recognizes the format of an encoded image.
+     * @param data the encoded image, from its position; the buffer is not modified
+     * @return the format, or {@code null} if it is not recognized
+     */
+    public static TileFormat detect(ByteBuffer data) {
+        if (data == null) {
+            return null;
+        }
+        if (startsWith(data, 0, 0x89, 'P', 'N', 'G')) {
+            return PNG;
+        }
+        if (startsWith(data, 0, 0xFF, 0xD8, 0xFF)) {
+            return JPG;
+        }
+        if (startsWith(data, 0, 'R', 'I', 'F', 'F') && startsWith(data, 8, 'W', 'E', 'B', 'P')) {
+            return WEBP;
+        }
+        if (startsWith(data, 0, 'G', 'I', 'F', '8')) {
+            return GIF;
+        }
+        return null;
+    }
+
+    private static boolean startsWith(ByteBuffer data, int offset, int... prefix) {
+        if (data.remaining() < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if ((data.get(data.position() + offset + i) & 0xFF) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Thread pool shared by all MBTiles and Mobac tile loaders.
+ *
+ * Waiting jobs are run newest view first, see {@link AbstractSqliteTileLoader}. The queue is
+ * bounded: when it is full the job with the lowest priority is dropped, because it most likely
+ * belongs to a part of the map that has already scrolled out of view.
+ */
+public final class TileLoaderExecutor {
+
+    /** Number of threads reading tiles from the sqlite databases. */
+    public static final IntegerProperty THREADS = new IntegerProperty("mbtiles.loader.threads", 4);
+    /** Maximum number of tile jobs waiting for a loader thread. */
+    public static final IntegerProperty QUEUE_SIZE = new IntegerProperty("mbtiles.loader.queue", 256);
+
+    private static ThreadPoolExecutor executor;
+    private static int maxQueued;
+    private static ThreadPoolExecutor backgroundExecutor;
+
+    private TileLoaderExecutor() {
+        // Hide default constructor for utility classes
+    }
+
+    /**
+     * Returns the shared executor, creating it on first use. Only tile jobs may be queued on it,
+     * use {@link #execute(AbstractSqliteTileLoader.SqliteTileJob)}.
+     * @return the executor running the tile loading jobs
+     */
+    static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(1, THREADS.get());
+            maxQueued = Math.max(1, QUEUE_SIZE.get());
+            executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<>(),
+                    Utils.newThreadFactory("mbtiles-loader-%d", Thread.NORM_PRIORITY),
+                    (r, e) -> cancel(r));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the single low priority thread used for scans of whole archives, e.g. to compute
+     * their extents. Scans run one after the other so that they don't compete with the loaders.
+     * @return the executor running background scans
+     */
+    public static synchronized ThreadPoolExecutor getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    Utils.newThreadFactory("mbtiles-scan-%d", Thread.MIN_PRIORITY));
+            backgroundExecutor.allowCoreThreadTimeOut(true);
+        }
+        return backgroundExecutor;
+    }
+
+    /**
+     * Queues a tile job, dropping the job with the lowest priority if the queue is full.
+     * The dropped tile is given back to its layer, which requests it again if it is still visible.
+     * @param job the job
+     */
+    static void execute(AbstractSqliteTileLoader.SqliteTileJob job) {
+        ThreadPoolExecutor e = getExecutor();
+        e.execute(job);
+        while (e.getQueue().size() > maxQueued) {
+            AbstractSqliteTileLoader.SqliteTileJob lowest = null;
+            for (Runnable r : e.getQueue()) {
+                if (r instanceof AbstractSqliteTileLoader.SqliteTileJob
+                        && (lowest == null || ((AbstractSqliteTileLoader.SqliteTileJob) r).compareTo(lowest) > 0)) {
+                    lowest = (AbstractSqliteTileLoader.SqliteTileJob) r;
+                }
+            }
+            if (lowest == null) {
+                break;
+            }
+            if (e.getQueue().remove(lowest)) {
+                lowest.cancel();
+            }
+        }
+    }
+
+    /**
+     * Drops the waiting jobs matching a condition, see {@link AbstractSqliteTileLoader#viewChanged}.
+     * Their tiles are given back to their layers.
+     * @param condition whether a job is dropped
+     */
+    static void dropJobs(Predicate<AbstractSqliteTileLoader.SqliteTileJob> condition) {
+        getExecutor().getQueue().removeIf(r -> {
+            if (r instanceof AbstractSqliteTileLoader.SqliteTileJob
+                    && condition.test((AbstractSqliteTileLoader.SqliteTileJob) r)) {
+                cancel(r);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private static void cancel(Runnable r) {
+        if (r instanceof AbstractSqliteTileLoader.SqliteTileJob) {
+            ((AbstractSqliteTileLoader.SqliteTileJob) r).cancel();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.gui.jmapviewer.MemoryTileCache;
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.josm.data.preferences.BooleanProperty;
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+
+/**
+ * Chooses the tiles to read ahead of the view: a ring of neighbour tiles around the tiles being
+ * displayed, then the tiles covering the same area one zoom level out and one zoom level in.
+ *
+ * The loaders queue these tiles behind every tile requested by the layer, so they only use
+ * loader threads that would otherwise be idle.
+ */
+public class TilePrefetcher {
+
+    /** Whether the layers read tiles ahead of the view. */
+    public static final BooleanProperty ENABLED = new BooleanProperty("mbtiles.prefetch", true);
+    /** Width of the ring of neighbour tiles read ahead, in tiles. */
+    public static final IntegerProperty RING = new IntegerProperty("mbtiles.prefetch.ring", 1);
+    /** Whether the tiles one zoom level out and in are read ahead. */
+    public static final BooleanProperty ZOOM_LEVELS = new BooleanProperty("mbtiles.prefetch.zoom", true);
+    /** Maximum number of tiles read ahead for one view. */
+    public static final IntegerProperty MAX_TILES = new IntegerProperty("mbtiles.prefetch.max", 128);
+
+    private final int ring;
+    private final boolean zoomLevels;
+    private final int maxTiles;
+
+    /**
+     * Creates a prefetcher.
+     * @param ring the width of the ring of neighbour tiles
+     * @param zoomLevels whether the tiles one zoom level out and in are read ahead
+     * @param maxTiles the maximum number of tiles read ahead for one view
+     */
+    public TilePrefetcher(int ring, boolean zoomLevels, int maxTiles) {
+        this.ring = ring;
+        this.zoomLevels = zoomLevels;
+        this.maxTiles = maxTiles;
+    }
+
+    /**
+     * Creates a prefetcher configured by the JOSM preferences.
+     * @return the prefetcher, or {@code null} if reading ahead is disabled
+     */
+    public static TilePrefetcher fromPreferences() {
+        if (!ENABLED.get()) {
+            return null;
+        }
+        return new TilePrefetcher(Math.max(0, RING.get()), ZOOM_LEVELS.get(), Math.max(0, MAX_TILES.get()));
+    }
+
+    /**
+     * Returns the positions to read ahead of a view, most useful first.
+     * @param zoom the zoom level displayed
+     * @param minX the minimum x coordinate of the tiles displayed
+     * @param minY the minimum y coordinate of the tiles displayed
+     * @param maxX the maximum x coordinate of the tiles displayed
+     * @param maxY the maximum y coordinate of the tiles displayed
+     * @return zoom level, x and y of each tile
+     */
+    public List<int[]> getPositions(int zoom, int minX, int minY, int maxX, int maxY) {
+        List<int[]> positions = new ArrayList<>();
+        // The ring, innermost first
+        for (int r = 1; r <= ring; r++) {
+            for (int x = minX - r; x <= maxX + r; x++) {
+                add(positions, zoom, x, minY - r);
+                add(positions, zoom, x, maxY + r);
+            }
+            for (int y = minY - r + 1; y <= maxY + r - 1; y++) {
+                add(positions, zoom, minX - r, y);
+                add(positions, zoom, maxX + r, y);
+            }
+        }
+        if (zoomLevels) {
+            if (zoom > 0) {
+                addRectangle(positions, zoom - 1, minX >> 1, minY >> 1, maxX >> 1, maxY >> 1);
+            }
+            addRectangle(positions, zoom + 1, minX << 1, minY << 1, (maxX << 1) + 1, (maxY << 1) + 1);
+        }
+        return positions.size() > maxTiles ? new ArrayList<>(positions.subList(0, maxTiles)) : positions;
+    }
+
+    private void addRectangle(List<int[]> positions, int zoom, int minX, int minY, int maxX, int maxY) {
+        for (int y = minY; y <= maxY && positions.size() < maxTiles; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                add(positions, zoom, x, y);
+            }
+        }
+    }
+
+    private static void add(List<int[]> positions, int zoom, int x, int y) {
+        int max = 1 << zoom;
+        if (x >= 0 && y >= 0 && x < max && y < max) {
+            positions.add(new int[] {zoom, x, y});
+        }
+    }
+
+    /**
+     * Gives the loaders access to the tiles of a layer, so that tiles read ahead end up in its tile cache.
+     */
+    public interface TileSupplier {
+        /**
+         * Returns the tile of the layer at a position, creating it if needed.
+         * @param zoom the zoom level of the tile
+         * @param x the x coordinate of the tile
+         * @param y the y coordinate of the tile
+         * @return the tile, or {@code null} if the layer has no such tile, e.g. because it is not shown yet
+         */
+        Tile getPrefetchTile(int zoom, int x, int y);
+
+        /**
+         * Returns the loader of the layer, to read tiles ahead of time, see {@link AreaPrefetcher}.
+         * @return the loader, or {@code null} if the layer is not shown yet
+         */
+        AbstractSqliteTileLoader getPrefetchLoader();
+
+        /**
+         * Returns the memory cache holding the decoded tiles of the layer.
+         * @return the tile cache, or {@code null} if the layer is not shown yet
+         */
+        MemoryTileCache getPrefetchTileCache();
+
+        /**
+         * Returns the tile source of the layer.
+         * @return the tile source, or {@code null} if the layer is not shown yet
+         */
+        TileSource getPrefetchTileSource();
+    }
+}
@@ -0,0 +1,148 @@
+package org.openstreetmap.josm.plugins.mbtiles.mbtiles;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.josm.plugins.mbtiles.ArchiveOptions;
+import org.openstreetmap.josm.plugins.mbtiles.SqliteException;
+import org.openstreetmap.josm.plugins.mbtiles.SqliteReadConnection;
+import org.openstreetmap.josm.plugins.mbtiles.TileArchive;
+
+/**
+ * An MBTiles file. Rows are stored in TMS order, so the y coordinate is flipped.
+ */
+public class MbtilesArchive extends TileArchive {
+
+    public MbtilesArchive(File file, ArchiveOptions options) throws SqliteException {
+        super(file, options);
+    }
+
+    @Override
+    protected String getTileQuery() {
+        return "SELECT tile_data FROM tiles WHERE zoom_level=? AND tile_column=? AND tile_row=? LIMIT 1";
+    }
+
+    @Override
+    protected String getRangeQuery() {
+        return "SELECT tile_column, tile_row, tile_data FROM tiles"
+                + " WHERE zoom_level=? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+    }
+
+    @Override
+    protected String getExtentsQuery() {
+        return "SELECT zoom_level, min(tile_column), max(tile_column), min(tile_row), max(tile_row)"
+                + " FROM tiles GROUP BY zoom_level";
+    }
+
+    @Override
+    protected String getKeysQuery() {
+        return "SELECT zoom_level, tile_column, tile_row FROM tiles";
+    }
+
+    @Override
+    protected String getRowidKeysQuery() {
+        // Only a plain table has rowids, not the view of a deduplicated file
+        return isTable("tiles") ? "SELECT rowid, zoom_level, tile_column, tile_row FROM tiles" : null;
+    }
+
+    @Override
+    protected String getRowidTileQuery() {
+        return "SELECT tile_data FROM tiles WHERE rowid=?";
+    }
+
+    @Override
+    protected int toStoredZoom(int zoom) {
+        return zoom;
+    }
+
+    @Override
+    protected int toStoredY(int zoom, int y) {
+        return (int) Math.pow(2, zoom) - 1 - y;
+    }
+
+    private boolean isTable(String name) {
+        SqliteReadConnection conn = null;
+        try {
+            conn = borrowConnection();
+            PreparedStatement stmt = conn.prepare("SELECT type FROM sqlite_master WHERE name=?");
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() && "table".equals(rs.getString(1));
+            }
+        } catch (SqliteException | SQLException e) {
+            return false;
+        } finally {
+            if (conn != null) {
+                releaseConnection(conn);
+            }
+        }
+    }
+
+    /**
+     * Reads the zoom range from an index on the zoom level, which takes two index lookups.
+     * Without such an index sqlite would have to read the whole table, so nothing is read then.
+     * A deduplicated file is probed through its map table, which the tiles view reads.
+     * @return the minimum and maximum zoom level, or {@code null} if there is no usable index or no tile
+     * @throws SQLException if a query fails
+     */
+    public int[] probeZoomRange() throws SQLException {
+        String table = isTable("tiles") ? "tiles" : isTable("map") ? "map" : null;
+        if (table == null) {
+            return null;
+        }
+        SqliteReadConnection conn;
+        try {
+            conn = borrowConnection();
+        } catch (SqliteException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+        try (Statement stmt = conn.getConnection().createStatement()) {
+            if (!hasZoomIndex(stmt, table)) {
+                return null;
+            }
+            // min() and max() in one statement would scan the index
+            Integer min = null;
+            Integer max = null;
+            try (ResultSet rs = stmt.executeQuery("SELECT min(zoom_level) FROM " + table)) {
+                if (rs.next() && rs.getObject(1) != null) {
+                    min = rs.getInt(1);
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT max(zoom_level) FROM " + table)) {
+                if (rs.next() && rs.getObject(1) != null) {
+                    max = rs.getInt(1);
+                }
+            }
+            return min == null || max == null ? null : new int[] {min, max};
+        } finally {
+            releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Tells whether a table has an index whose first column is the zoom level.
+     */
+    private static boolean hasZoomIndex(Statement stmt, String table) throws SQLException {
+        List<String> indexes = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery("PRAGMA index_list(" + table + ")")) {
+            while (rs.next()) {
+                indexes.add(rs.getString("name"));
+            }
+        }
+        for (String index : indexes) {
+            try (ResultSet rs = stmt.executeQuery("PRAGMA index_info('" + index.replace("'", "''") + "')")) {
+                while (rs.next()) {
+                    if (rs.getInt("seqno") == 0 && "zoom_level".equalsIgnoreCase(rs.getString("name"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -4,14 +4,13 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 
 import java.io.File;
 import java.io.IOException;
-import java.sql.Connection;
 
 import org.openstreetmap.josm.actions.ExtensionFileFilter;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.io.importexport.FileImporter;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.plugins.mbtiles.ArchiveOptions;
 import org.openstreetmap.josm.plugins.mbtiles.SqliteException;
-import org.openstreetmap.josm.plugins.mbtiles.SqliteUtils;
 import org.openstreetmap.josm.tools.Logging;
 
 public class MbtilesFileImporter extends FileImporter {
@@ -26,9 +25,15 @@ public class MbtilesFileImporter extends FileImporter {
     @Override
     public void importData(File file, ProgressMonitor progressMonitor) throws IOException {
         try {
-            Connection conn = SqliteUtils.obtainSqliteDbConnection(file, true);
-            MbtilesLayer layer = new MbtilesLayer(conn);
-            MainApplication.getLayerManager().addLayer(layer);
+            MbtilesArchive archive = new MbtilesArchive(file, ArchiveOptions.fromPreferences());
+            try {
+                MbtilesLayer layer = new MbtilesLayer(archive);
+                MainApplication.getLayerManager().addLayer(layer);
+            } catch (SqliteException | RuntimeException e) {
+                // No layer owns the archive to close it on destroy
+                archive.close();
+                throw e;
+            }
         } catch (SqliteException e) {
             Logging.logWithStackTrace(Logging.LEVEL_WARN, "Error opening Mbtiles file", e);
             throw new IOException(tr("Opening MBTiles file failed"), e);
@@ -2,20 +2,37 @@ package org.openstreetmap.josm.plugins.mbtiles.mbtiles;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.swing.Action;
+
+import org.openstreetmap.gui.jmapviewer.MemoryTileCache;
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
 import org.openstreetmap.gui.jmapviewer.tilesources.AbstractTMSTileSource;
 import org.openstreetmap.gui.jmapviewer.tilesources.TMSTileSource;
 import org.openstreetmap.josm.data.imagery.ImageryInfo;
 import org.openstreetmap.josm.data.imagery.ImageryInfo.ImageryBounds;
 import org.openstreetmap.josm.data.imagery.ImageryInfo.ImageryType;
 import org.openstreetmap.josm.data.imagery.TileLoaderFactory;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapFrame;
+import org.openstreetmap.josm.gui.NavigatableComponent;
 import org.openstreetmap.josm.gui.layer.AbstractTileSourceLayer;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.mbtiles.AbstractSqliteTileLoader;
+import org.openstreetmap.josm.plugins.mbtiles.PrefetchAreaAction;
 import org.openstreetmap.josm.plugins.mbtiles.SqliteException;
+import org.openstreetmap.josm.plugins.mbtiles.SqliteReadConnection;
+import org.openstreetmap.josm.plugins.mbtiles.TileDataCache;
+import org.openstreetmap.josm.plugins.mbtiles.TileExtents;
+import org.openstreetmap.josm.plugins.mbtiles.TileExtentsCache;
+import org.openstreetmap.josm.plugins.mbtiles.TilePrefetcher;
 import org.openstreetmap.josm.tools.Logging;
 
 /**
@@ -25,65 +42,106 @@ import org.openstreetmap.josm.tools.Logging;
  * @author Ian Dees <ian.dees@gmail.com>
  *
  */
-public class MbtilesLayer extends AbstractTileSourceLayer {
+public class MbtilesLayer extends AbstractTileSourceLayer implements TilePrefetcher.TileSupplier {
+
+    /** Highest zoom level allowed until the tiles are scanned, enough for very detailed orthophotos. */
+    private static final int UNSCANNED_MAX_ZOOM = 24;
 
-    private final Connection connection;
+    private final MbtilesArchive archive;
+    /** Tells the loader when the map view moves, see {@link AbstractSqliteTileLoader#viewChanged}. */
+    private final NavigatableComponent.ZoomChangeListener viewListener = this::viewChanged;
 
-    public MbtilesLayer(Connection mbtilesConnection) throws SqliteException {
-        super(buildImageryInfo(mbtilesConnection));
-        connection = mbtilesConnection;
-        super.tileLoader = new MbtilesTileLoader(this, mbtilesConnection);
+    public MbtilesLayer(MbtilesArchive archive) throws SqliteException {
+        this(archive, readMetadata(archive));
     }
 
-    private static ImageryInfo buildImageryInfo(Connection mbtilesConnection) throws SqliteException {
-        String name = null;
-        try {
-            name = mbtilesConnection.getSchema();
-        } catch (SQLException ignored) {
+    private MbtilesLayer(MbtilesArchive archive, Map<String, String> metadata) {
+        super(buildImageryInfo(metadata));
+        this.archive = archive;
+        super.tileLoader = new MbtilesTileLoader(this, archive);
+        NavigatableComponent.addZoomChangeListener(viewListener);
+        if (!metadata.containsKey("bounds") || !metadata.containsKey("minzoom") || !metadata.containsKey("maxzoom")) {
+            // Computing the missing values needs a scan of the tiles, which can take minutes on a large file
+            TileExtentsCache.getInstance().getInBackground(archive,
+                    extents -> GuiHelper.runInEDT(() -> extentsComputed(metadata, extents)));
         }
-        ImageryBounds bounds = null;
-        int maxz = 18;
-        int minz = -1;
+    }
 
+    /**
+     * Reads the metadata table. A missing zoom range is read from the tile index if there is one.
+     */
+    private static Map<String, String> readMetadata(MbtilesArchive archive) throws SqliteException {
+        Map<String, String> metadata = new HashMap<>();
+        SqliteReadConnection conn = archive.borrowConnection();
         try {
-            PreparedStatement statement = mbtilesConnection.prepareStatement("SELECT name,value FROM metadata");
-
-            ResultSet rs = statement.executeQuery();
-            while (rs.next()) {
-                String metaName = rs.getString("name");
-                if ("name".equals(metaName)) {
-                    name = rs.getString("value");
-                } else if ("bounds".equals(metaName)) {
-                    // Rearrange the bbox string because it's in Left,Bottom,Right,Top order and
-                    // ImageryBounds is expecting Min/Max order.
-                    String[] parts = rs.getString("value").split(",");
-                    String rearrangedBbox = parts[1] + "," + parts[0] + "," + parts[3] + "," + parts[2];
-                    bounds = new ImageryBounds(rearrangedBbox, ",");
-                } else if ("minzoom".equals(metaName)) {
-                    minz = rs.getInt("value");
-                } else if ("maxzoom".equals(metaName)) {
-                    maxz = rs.getInt("value");
+            try {
+                String schema = conn.getConnection().getSchema();
+                if (schema != null) {
+                    metadata.put("name", schema);
                 }
+            } catch (SQLException ignored) {
             }
-
-            if (maxz == 0 || minz == -1) {
-                statement = mbtilesConnection.prepareStatement("SELECT max(zoom_level) AS max,min(zoom_level) AS min FROM tiles");
-
-                rs = statement.executeQuery();
-                rs.next();
-                maxz = rs.getInt("max");
-                minz = rs.getInt("min");
+            try (ResultSet rs = conn.prepare("SELECT name,value FROM metadata").executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getString("value") != null) {
+                        metadata.put(rs.getString("name"), rs.getString("value"));
+                    }
+                }
             }
         } catch (SQLException e) {
             throw new SqliteException(tr("This doesn't appear to be a valid mbtiles database."), e);
+        } finally {
+            archive.releaseConnection(conn);
         }
 
-        ImageryInfo info = new ImageryInfo(tr("MBTiles: {0}", name));
-        if (bounds != null) {
-            info.setBounds(bounds);
+        if ("0".equals(metadata.get("maxzoom"))) {
+            metadata.remove("maxzoom");
+        }
+        if (metadata.containsKey("tile_extents")) {
+            fillFromTileExtents(metadata);
+        }
+        if (!metadata.containsKey("minzoom") || !metadata.containsKey("maxzoom")) {
+            try {
+                int[] zoomRange = archive.probeZoomRange();
+                if (zoomRange != null) {
+                    metadata.put("minzoom", Integer.toString(zoomRange[0]));
+                    metadata.put("maxzoom", Integer.toString(zoomRange[1]));
+                }
+            } catch (SQLException e) {
+                throw new SqliteException(tr("This doesn't appear to be a valid mbtiles database."), e);
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Fills in the bounds and zoom range missing from the metadata from the tile extents written by
+     * {@link org.openstreetmap.josm.plugins.mbtiles.MbtilesWriter}, which saves the scan of the tiles.
+     */
+    private static void fillFromTileExtents(Map<String, String> metadata) {
+        TileExtents extents;
+        try {
+            extents = TileExtents.parse(metadata.get("tile_extents"));
+        } catch (IllegalArgumentException e) {
+            Logging.warn("Ignoring invalid tile_extents metadata: " + e.getMessage());
+            return;
         }
-        info.setDefaultMaxZoom(maxz);
-        info.setDefaultMinZoom(minz);
+        if (extents.isEmpty()) {
+            return;
+        }
+        metadata.putIfAbsent("bounds", extents.getBoundsString());
+        metadata.putIfAbsent("minzoom", Integer.toString(extents.getMinZoom()));
+        metadata.putIfAbsent("maxzoom", Integer.toString(extents.getMaxZoom()));
+    }
+
+    private static ImageryInfo buildImageryInfo(Map<String, String> metadata) {
+        ImageryInfo info = new ImageryInfo(tr("MBTiles: {0}", metadata.get("name")));
+        if (metadata.containsKey("bounds")) {
+            info.setBounds(toImageryBounds(metadata.get("bounds")));
+        }
+        // Until the tiles are scanned, allow every zoom level that may have tiles
+        info.setDefaultMaxZoom(parseZoom(metadata.get("maxzoom"), UNSCANNED_MAX_ZOOM));
+        info.setDefaultMinZoom(parseZoom(metadata.get("minzoom"), 0));
         info.setIcon("mbtiles");
         info.setImageryType(ImageryType.TMS);
         // Hack around the TMSLayer's URL check
@@ -91,20 +149,107 @@ public class MbtilesLayer extends AbstractTileSourceLayer {
         return info;
     }
 
-    @Override
-    public void destroy() {
-        super.destroy();
+    private static ImageryBounds toImageryBounds(String bbox) {
+        // Rearrange the bbox string because it's in Left,Bottom,Right,Top order and
+        // ImageryBounds is expecting Min/Max order.
+        String[] parts = bbox.split(",");
+        String rearrangedBbox = parts[1] + "," + parts[0] + "," + parts[3] + "," + parts[2];
+        return new ImageryBounds(rearrangedBbox, ",");
+    }
 
+    private static int parseZoom(String value, int defaultZoom) {
+        if (value == null) {
+            return defaultZoom;
+        }
         try {
-            connection.close();
-        } catch (SQLException e) {
-            Logging.logWithStackTrace(Logging.LEVEL_WARN, "Error closing sqlite database", e);
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultZoom;
+        }
+    }
+
+    /**
+     * Fills in the values missing from the metadata once the tiles are scanned. If the layer is
+     * shown already, its tile source is replaced so that it uses the scanned zoom range.
+     */
+    private void extentsComputed(Map<String, String> metadata, TileExtents extents) {
+        if (extents.isEmpty()) {
+            return;
+        }
+        if (!metadata.containsKey("bounds")) {
+            info.setBounds(toImageryBounds(extents.getBoundsString()));
         }
+        if (!metadata.containsKey("minzoom")) {
+            info.setDefaultMinZoom(extents.getMinZoom());
+        }
+        if (!metadata.containsKey("maxzoom")) {
+            info.setDefaultMaxZoom(extents.getMaxZoom());
+        }
+        if (tileSource != null && (!metadata.containsKey("minzoom") || !metadata.containsKey("maxzoom"))) {
+            // The tile source copies the zoom range from the imagery info when it is created
+            tileSource = getTileSource();
+        }
+        invalidate();
+    }
+
+    @Override
+    public Tile getPrefetchTile(int zoom, int x, int y) {
+        AbstractTMSTileSource source = tileSource;
+        if (source == null || tileCache == null || zoom < source.getMinZoom() || zoom > source.getMaxZoom()) {
+            return null;
+        }
+        Tile tile = tileCache.getTile(source, x, y, zoom);
+        if (tile == null) {
+            tile = new Tile(source, x, y, zoom);
+            tileCache.addTile(tile);
+        }
+        return tile;
+    }
+
+    @Override
+    public AbstractSqliteTileLoader getPrefetchLoader() {
+        return tileLoader instanceof AbstractSqliteTileLoader ? (AbstractSqliteTileLoader) tileLoader : null;
+    }
+
+    @Override
+    public MemoryTileCache getPrefetchTileCache() {
+        return tileCache;
+    }
+
+    @Override
+    public TileSource getPrefetchTileSource() {
+        return tileSource;
+    }
+
+    @Override
+    public Action[] getMenuEntries() {
+        Action[] entries = super.getMenuEntries();
+        Action[] result = Arrays.copyOf(entries, entries.length + 1);
+        result[entries.length] = new PrefetchAreaAction(this);
+        return result;
+    }
+
+    private void viewChanged() {
+        MapFrame map = MainApplication.getMap();
+        AbstractSqliteTileLoader loader = getPrefetchLoader();
+        if (map != null && loader != null) {
+            loader.viewChanged(map.mapView.getRealBounds());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        NavigatableComponent.removeZoomChangeListener(viewListener);
+        tileLoader.cancelOutstandingTasks();
+        archive.close();
+        // The file may be replaced before it is opened again
+        TileDataCache.getInstance().invalidate(archive.getFile().getAbsolutePath());
     }
 
     @Override
     protected TileLoaderFactory getTileLoaderFactory() {
-        return new MbtilesTileLoaderFactory(this.connection);
+        return new MbtilesTileLoaderFactory(this.archive);
     }
 
     @Override
@@ -1,6 +1,5 @@
 package org.openstreetmap.josm.plugins.mbtiles.mbtiles;
 
-import java.sql.Connection;
 import java.util.Map;
 
 import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
@@ -9,14 +8,14 @@ import org.openstreetmap.josm.data.imagery.TileLoaderFactory;
 
 public class MbtilesTileLoaderFactory implements TileLoaderFactory {
 
-    private final Connection connection;
+    private final MbtilesArchive archive;
 
-    public MbtilesTileLoaderFactory(Connection connection) {
-        this.connection = connection;
+    public MbtilesTileLoaderFactory(MbtilesArchive archive) {
+        this.archive = archive;
     }
 
     @Override
     public TileLoader makeTileLoader(TileLoaderListener listener, Map<String, String> headers, long minimumExpiryTime) {
-        return new MbtilesTileLoader(listener, this.connection);
+        return new MbtilesTileLoader(listener, this.archive);
     }
 }
@@ -0,0 +1,47 @@
+package org.openstreetmap.josm.plugins.mbtiles.mobac;
+
+import org.openstreetmap.josm.plugins.mbtiles.ArchiveOptions;
+import org.openstreetmap.josm.plugins.mbtiles.SqliteException;
+import org.openstreetmap.josm.plugins.mbtiles.TileArchive;
+
+import java.io.File;
+
+/**
+ * A Mobac atlas file. Mobac counts zoom levels down from 17, the y coordinate is not flipped.
+ */
+public class MobacArchive extends TileArchive {
+
+    public MobacArchive(File file, ArchiveOptions options) throws SqliteException {
+        super(file, options);
+    }
+
+    @Override
+    protected String getTileQuery() {
+        return "SELECT image FROM tiles WHERE z=? AND x=? AND y=? LIMIT 1";
+    }
+
+    @Override
+    protected String getRangeQuery() {
+        return "SELECT x, y, image FROM tiles WHERE z=? AND x BETWEEN ? AND ? AND y BETWEEN ? AND ?";
+    }
+
+    @Override
+    protected String getExtentsQuery() {
+        return "SELECT z, min(x), max(x), min(y), max(y) FROM tiles GROUP BY z";
+    }
+
+    @Override
+    protected String getKeysQuery() {
+        return "SELECT z, x, y FROM tiles";
+    }
+
+    @Override
+    protected int toStoredZoom(int zoom) {
+        return 17 - zoom;
+    }
+
+    @Override
+    protected int toStoredY(int zoom, int y) {
+        return y;
+    }
+}
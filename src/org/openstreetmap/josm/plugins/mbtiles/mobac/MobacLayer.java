@@ -1,33 +1,63 @@
 package org.openstreetmap.josm.plugins.mbtiles.mobac;
 
 import org.openstreetmap.gui.jmapviewer.FeatureAdapter;
-import org.openstreetmap.gui.jmapviewer.OsmMercator;
+import org.openstreetmap.gui.jmapviewer.MemoryTileCache;
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
 import org.openstreetmap.gui.jmapviewer.tilesources.AbstractTMSTileSource;
 import org.openstreetmap.gui.jmapviewer.tilesources.TMSTileSource;
 import org.openstreetmap.josm.data.imagery.ImageryInfo;
 import org.openstreetmap.josm.data.imagery.TileLoaderFactory;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapFrame;
+import org.openstreetmap.josm.gui.NavigatableComponent;
 import org.openstreetmap.josm.gui.layer.AbstractTileSourceLayer;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.mbtiles.AbstractSqliteTileLoader;
+import org.openstreetmap.josm.plugins.mbtiles.PrefetchAreaAction;
 import org.openstreetmap.josm.plugins.mbtiles.SqliteException;
+import org.openstreetmap.josm.plugins.mbtiles.SqliteReadConnection;
+import org.openstreetmap.josm.plugins.mbtiles.TileDataCache;
+import org.openstreetmap.josm.plugins.mbtiles.TileExtents;
+import org.openstreetmap.josm.plugins.mbtiles.TileExtentsCache;
+import org.openstreetmap.josm.plugins.mbtiles.TilePrefetcher;
 import org.openstreetmap.josm.tools.Logging;
 
+import javax.swing.Action;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.logging.Logger;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
-public class MobacLayer extends AbstractTileSourceLayer {
+public class MobacLayer extends AbstractTileSourceLayer implements TilePrefetcher.TileSupplier {
     private static final Logger LOG = FeatureAdapter.getLogger(MobacLayer.class.getCanonicalName());
 
-    private final Connection connection;
+    private final MobacArchive archive;
+    /** Tells the loader when the map view moves, see {@link AbstractSqliteTileLoader#viewChanged}. */
+    private final NavigatableComponent.ZoomChangeListener viewListener = this::viewChanged;
+
+    public MobacLayer(MobacArchive archive) throws SqliteException {
+        super(buildImageryInfo(archive));
+        super.tileLoader = new MobacTileLoader(this, archive);
+        this.archive = archive;
+        NavigatableComponent.addZoomChangeListener(viewListener);
+        // The bounds need a scan of the tiles table, so the layer is shown without them first
+        TileExtentsCache.getInstance().getInBackground(archive,
+                extents -> GuiHelper.runInEDT(() -> extentsComputed(extents)));
+    }
 
-    public MobacLayer(Connection mobacConnection) throws SqliteException {
-        super(buildImageryInfo(mobacConnection));
-        super.tileLoader = new MobacTileLoader(this, mobacConnection);
-        this.connection = mobacConnection;
+    private static ImageryInfo buildImageryInfo(MobacArchive archive) throws SqliteException {
+        SqliteReadConnection conn = archive.borrowConnection();
+        try {
+            return buildImageryInfo(conn.getConnection());
+        } finally {
+            archive.releaseConnection(conn);
+        }
     }
 
     private static ImageryInfo buildImageryInfo(Connection mobacConnection) throws SqliteException {
@@ -65,70 +95,90 @@ public class MobacLayer extends AbstractTileSourceLayer {
             throw new SqliteException("Couldn't read metadata from Mobac Atlas", e);
         }
 
-        // Look at the most-zoomed-in tiles to get the bounds
-        ImageryInfo.ImageryBounds bounds = null;
-        try {
-            PreparedStatement statement = mobacConnection.prepareStatement("SELECT min(x), min(y), max(x), max(y) FROM tiles WHERE z = ?");
-
-            // Swap the max zoom back to the value that Mobac expects for this query
-            int mobacMaxZ = 17 - maxz;
-            statement.setInt(1, mobacMaxZ);
-            ResultSet rs = statement.executeQuery();
-            if (rs.next()) {
-                int x1 = rs.getInt(1);
-                int y1 = rs.getInt(4); // y is inverted in Mobac
-                int x2 = rs.getInt(3) + 1;
-                int y2 = rs.getInt(2);
-
-                LOG.info("Tile range at Mobac zoom " + mobacMaxZ + ": x from " + x1 + " to " + x2 + ", y from " + y1 + " to " + y2);
-
-                // Convert the tile coordinates to lat/lon
-                int tileSize = 256;
-                double minLon = OsmMercator.MERCATOR_256.xToLon(x1 * tileSize, maxz);
-                double minLat = OsmMercator.MERCATOR_256.yToLat(y1 * tileSize, maxz);
-                double maxLon = OsmMercator.MERCATOR_256.xToLon(x2 * tileSize, maxz);
-                double maxLat = OsmMercator.MERCATOR_256.yToLat(y2 * tileSize, maxz);
-
-                // Build the ImageryBounds using a string
-                String boundsString = minLat + "," + minLon + "," + maxLat + "," + maxLon;
-                LOG.info("Bounds: " + boundsString);
-                bounds = new ImageryInfo.ImageryBounds(boundsString, ",");
-            }
-            rs.close();
-        } catch (SQLException e) {
-            Logging.logWithStackTrace(Logging.LEVEL_WARN, "Couldn't read bounds from Mobac Atlas", e);
-        }
-
-
         // Use the data from the metadata table to build the ImageryInfo object
         ImageryInfo info = new ImageryInfo(tr("Mobac Atlas: {0}", name));
         info.setDefaultMaxZoom(maxz);
         info.setDefaultMinZoom(minz);
         info.setIcon("mbtiles");
         info.setImageryType(ImageryInfo.ImageryType.TMS);
-        if (bounds != null) {
-            info.setBounds(bounds);
-            LOG.info("Setting bounds to " + bounds);
-        }
         // Hack around the TMSLayer's URL check
         info.setUrl("tms:http://example.com");
         return info;
     }
 
+    /**
+     * Sets the bounds once the tiles are scanned.
+     */
+    private void extentsComputed(TileExtents extents) {
+        if (extents.isEmpty()) {
+            return;
+        }
+        double[] bounds = extents.getBounds();
+        // Build the ImageryBounds using a string
+        String boundsString = bounds[1] + "," + bounds[0] + "," + bounds[3] + "," + bounds[2];
+        LOG.info("Setting bounds to " + boundsString);
+        info.setBounds(new ImageryInfo.ImageryBounds(boundsString, ","));
+        invalidate();
+    }
+
     @Override
-    public void destroy() {
-        super.destroy();
+    public Tile getPrefetchTile(int zoom, int x, int y) {
+        AbstractTMSTileSource source = tileSource;
+        if (source == null || tileCache == null || zoom < source.getMinZoom() || zoom > source.getMaxZoom()) {
+            return null;
+        }
+        Tile tile = tileCache.getTile(source, x, y, zoom);
+        if (tile == null) {
+            tile = new Tile(source, x, y, zoom);
+            tileCache.addTile(tile);
+        }
+        return tile;
+    }
 
-        try {
-            connection.close();
-        } catch (SQLException e) {
-            Logging.logWithStackTrace(Logging.LEVEL_WARN, "Error closing sqlite database", e);
+    @Override
+    public AbstractSqliteTileLoader getPrefetchLoader() {
+        return tileLoader instanceof AbstractSqliteTileLoader ? (AbstractSqliteTileLoader) tileLoader : null;
+    }
+
+    @Override
+    public MemoryTileCache getPrefetchTileCache() {
+        return tileCache;
+    }
+
+    @Override
+    public TileSource getPrefetchTileSource() {
+        return tileSource;
+    }
+
+    @Override
+    public Action[] getMenuEntries() {
+        Action[] entries = super.getMenuEntries();
+        Action[] result = Arrays.copyOf(entries, entries.length + 1);
+        result[entries.length] = new PrefetchAreaAction(this);
+        return result;
+    }
+
+    private void viewChanged() {
+        MapFrame map = MainApplication.getMap();
+        AbstractSqliteTileLoader loader = getPrefetchLoader();
+        if (map != null && loader != null) {
+            loader.viewChanged(map.mapView.getRealBounds());
         }
     }
 
+    @Override
+    public void destroy() {
+        super.destroy();
+        NavigatableComponent.removeZoomChangeListener(viewListener);
+        tileLoader.cancelOutstandingTasks();
+        archive.close();
+        // The file may be replaced before it is opened again
+        TileDataCache.getInstance().invalidate(archive.getFile().getAbsolutePath());
+    }
+
     @Override
     protected TileLoaderFactory getTileLoaderFactory() {
-        return new MobacTileLoaderFactory(this.connection);
+        return new MobacTileLoaderFactory(this.archive);
     }
 
     @Override
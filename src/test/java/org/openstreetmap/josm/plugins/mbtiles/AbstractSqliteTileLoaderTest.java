@@ -0,0 +1,380 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TMSTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSourceInfo;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.plugins.mbtiles.mbtiles.MbtilesArchive;
+import org.openstreetmap.josm.plugins.mbtiles.mbtiles.MbtilesTileLoader;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Tests for the scheduling of the tile loaders: shared reads, batches and dropped jobs.
+ *
+ * Single tile reads wait until the test releases them, so that the jobs queued meanwhile can be checked.
+ */
+class AbstractSqliteTileLoaderTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final int ZOOM = 4;
+    private static final TileSource SOURCE = new TMSTileSource(new TileSourceInfo("test", "http://localhost/", "test"));
+    private static final TileLoaderListener LISTENER = (tile, success) -> { };
+    /** An area within tile 8/8 at {@link #ZOOM}, far from tile 1/1. */
+    private static final Bounds VIEW = new Bounds(-15, 5, -5, 15);
+
+    @BeforeAll
+    static void setUpPreferences() {
+        // The loaders and their thread pools are configured from the preferences, left at their defaults
+        Config.setPreferencesInstance(Preferences.main());
+    }
+
+    @Test
+    void twoLoadersOfOneFileReadTheTileOnce() throws Exception {
+        BlockingArchive archive = new BlockingArchive(createDb(ZOOM, 1, 1));
+        try {
+            MbtilesTileLoader first = new MbtilesTileLoader(LISTENER, archive);
+            MbtilesTileLoader second = new MbtilesTileLoader(LISTENER, archive);
+            Tile firstTile = new Tile(SOURCE, 1, 1, ZOOM);
+            Tile secondTile = new Tile(SOURCE, 1, 1, ZOOM);
+
+            startLeaderAndFollower(archive, first.createTileLoaderJob(firstTile),
+                    second.createTileLoaderJob(secondTile));
+            archive.release.countDown();
+            awaitLoaded(first, second);
+
+            assertEquals(1, archive.tileReads.get());
+            assertTrue(firstTile.isLoaded());
+            assertTrue(secondTile.isLoaded());
+            assertSame(firstTile.getImage(), secondTile.getImage());
+        } finally {
+            archive.release.countDown();
+            archive.close();
+        }
+    }
+
+    @Test
+    void failedReadIsReportedToWaitingLoaders() throws Exception {
+        BlockingArchive archive = new BlockingArchive(createDb(ZOOM, 1, 1));
+        archive.fail = true;
+        try {
+            MbtilesTileLoader first = new MbtilesTileLoader(LISTENER, archive);
+            MbtilesTileLoader second = new MbtilesTileLoader(LISTENER, archive);
+            Tile firstTile = new Tile(SOURCE, 1, 1, ZOOM);
+            Tile secondTile = new Tile(SOURCE, 1, 1, ZOOM);
+
+            startLeaderAndFollower(archive, first.createTileLoaderJob(firstTile),
+                    second.createTileLoaderJob(secondTile));
+            archive.release.countDown();
+            awaitLoaded(first, second);
+
+            assertEquals(1, archive.tileReads.get());
+            assertEquals("Broken archive", firstTile.getErrorMessage());
+            assertEquals("Broken archive", secondTile.getErrorMessage());
+        } finally {
+            archive.release.countDown();
+            archive.close();
+        }
+    }
+
+    @Test
+    void interruptedReadGivesTheTileBackToWaitingLoaders() throws Exception {
+        BlockingArchive archive = new BlockingArchive(createDb(ZOOM, 1, 1));
+        archive.fail = true;
+        try {
+            MbtilesTileLoader first = new MbtilesTileLoader(LISTENER, archive);
+            MbtilesTileLoader second = new MbtilesTileLoader(LISTENER, archive);
+            Tile firstTile = new Tile(SOURCE, 1, 1, ZOOM);
+            Tile secondTile = new Tile(SOURCE, 1, 1, ZOOM);
+
+            startLeaderAndFollower(archive, first.createTileLoaderJob(firstTile),
+                    second.createTileLoaderJob(secondTile));
+            first.cancelOutstandingTasks();
+            archive.release.countDown();
+            awaitLoaded(first, second);
+
+            assertEquals(1, archive.tileReads.get());
+            assertFalse(firstTile.isLoading());
+            assertFalse(secondTile.isLoading());
+            assertFalse(secondTile.hasError(), "The tile must be requested again, not shown as broken");
+        } finally {
+            archive.release.countDown();
+            archive.close();
+        }
+    }
+
+    @Test
+    void waitingJobsOutOfViewAreDroppedWhenTheViewMoves() throws Exception {
+        BlockingArchive archive = new BlockingArchive(createDb(ZOOM, 1, 1, 8, 8));
+        try {
+            MbtilesTileLoader loader = new MbtilesTileLoader(LISTENER, archive);
+            int busy = occupyAllLoaderThreads(archive, loader);
+            Tile leftTile = new Tile(SOURCE, 1, 1, ZOOM);
+            Tile keptTile = new Tile(SOURCE, 8, 8, ZOOM);
+            loader.createTileLoaderJob(leftTile).submit();
+            loader.createTileLoaderJob(keptTile).submit();
+
+            loader.viewChanged(VIEW);
+
+            assertFalse(leftTile.isLoading(), "The dropped tile must be given back to the layer");
+            assertTrue(keptTile.isLoading());
+            assertEquals(busy + 1, loader.getOutstandingCount());
+            archive.release.countDown();
+            awaitLoaded(loader);
+
+            assertEquals(busy + 1, archive.tileReads.get());
+            assertFalse(leftTile.isLoaded());
+            assertTrue(keptTile.isLoaded());
+        } finally {
+            archive.release.countDown();
+            archive.close();
+        }
+    }
+
+    @Test
+    void readsOfTilesOutOfViewAreInterruptedWhenTheViewMoves() throws Exception {
+        BlockingArchive archive = new BlockingArchive(createDb(ZOOM, 1, 1));
+        archive.fail = true;
+        try {
+            MbtilesTileLoader loader = new MbtilesTileLoader(LISTENER, archive);
+            Tile tile = new Tile(SOURCE, 1, 1, ZOOM);
+            loader.createTileLoaderJob(tile).submit();
+            assertTrue(archive.started.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            loader.viewChanged(VIEW);
+            archive.release.countDown();
+            awaitLoaded(loader);
+
+            assertFalse(tile.isLoading());
+            assertFalse(tile.hasError(), "The tile must be requested again, not shown as broken");
+        } finally {
+            archive.release.countDown();
+            archive.close();
+        }
+    }
+
+    @Test
+    void readsOfTilesInViewGoOnWhenTheViewMoves() throws Exception {
+        BlockingArchive archive = new BlockingArchive(createDb(ZOOM, 8, 8));
+        archive.fail = true;
+        try {
+            MbtilesTileLoader loader = new MbtilesTileLoader(LISTENER, archive);
+            Tile tile = new Tile(SOURCE, 8, 8, ZOOM);
+            loader.createTileLoaderJob(tile).submit();
+            assertTrue(archive.started.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            loader.viewChanged(VIEW);
+            archive.release.countDown();
+            awaitLoaded(loader);
+
+            assertEquals("Broken archive", tile.getErrorMessage(), "The read must not have been interrupted");
+        } finally {
+            archive.release.countDown();
+            archive.close();
+        }
+    }
+
+    @Test
+    void newestViewAndDisplayedZoomLevelComeFirst() throws Exception {
+        BlockingArchive archive = new BlockingArchive(createDb(ZOOM, 1, 1, 2, 1, 3, 1));
+        try {
+            MbtilesTileLoader loader = new MbtilesTileLoader(LISTENER, archive);
+            occupyAllLoaderThreads(archive, loader);
+            AbstractSqliteTileLoader.SqliteTileJob old = job(loader, new Tile(SOURCE, 1, 1, ZOOM));
+            AbstractSqliteTileLoader.SqliteTileJob readAhead = job(loader, new Tile(SOURCE, 3, 1, ZOOM));
+            AbstractSqliteTileLoader.SqliteTileJob displayed = job(loader, new Tile(SOURCE, 2, 1, ZOOM));
+            AbstractSqliteTileLoader.SqliteTileJob neighbour = job(loader, new Tile(SOURCE, 0, 0, ZOOM + 1));
+            old.submit(1, false);
+            readAhead.submit(2, true);
+            displayed.submit(2, false);
+            neighbour.submit(2, false);
+
+            List<AbstractSqliteTileLoader.SqliteTileJob> order = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                order.add((AbstractSqliteTileLoader.SqliteTileJob) TileLoaderExecutor.getExecutor().getQueue().poll());
+            }
+            for (AbstractSqliteTileLoader.SqliteTileJob job : order) {
+                job.cancel();
+            }
+
+            assertSame(displayed, order.get(0));
+            assertSame(neighbour, order.get(1));
+            assertSame(old, order.get(2));
+            assertSame(readAhead, order.get(3));
+            archive.release.countDown();
+            awaitLoaded(loader);
+        } finally {
+            archive.release.countDown();
+            archive.close();
+        }
+    }
+
+    @Test
+    void waitingTilesOfOneZoomLevelAreReadTogether() throws Exception {
+        BlockingArchive archive = new BlockingArchive(createDb(ZOOM, 1, 1, 2, 1, 1, 2, 2, 2));
+        try {
+            MbtilesTileLoader loader = new MbtilesTileLoader(LISTENER, archive);
+            int busy = occupyAllLoaderThreads(archive, loader);
+            List<Tile> tiles = new ArrayList<>();
+            for (int x = 1; x <= 2; x++) {
+                for (int y = 1; y <= 2; y++) {
+                    Tile tile = new Tile(SOURCE, x, y, ZOOM);
+                    tiles.add(tile);
+                    loader.createTileLoaderJob(tile).submit();
+                }
+            }
+
+            archive.release.countDown();
+            awaitLoaded(loader);
+
+            assertEquals(busy, archive.tileReads.get(), "Only the tiles occupying the threads are read alone");
+            assertEquals(1, archive.rangeReads.get());
+            for (Tile tile : tiles) {
+                assertTrue(tile.isLoaded());
+            }
+        } finally {
+            archive.release.countDown();
+            archive.close();
+        }
+    }
+
+    /**
+     * Starts the first job, waits until it reads its tile, then starts the second one and waits
+     * until it has joined the first one.
+     */
+    private static void startLeaderAndFollower(BlockingArchive archive,
+            TileJob leader, TileJob follower) throws InterruptedException {
+        ThreadPoolExecutor executor = TileLoaderExecutor.getExecutor();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        // Jobs of the previous tests must not be counted as the second job
+        while (executor.getActiveCount() > 0) {
+            assertTrue(System.nanoTime() < end, "The loader threads are still busy");
+            Thread.sleep(10);
+        }
+        leader.submit();
+        assertTrue(archive.started.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long completed = executor.getCompletedTaskCount();
+        follower.submit();
+        while (executor.getCompletedTaskCount() == completed) {
+            assertTrue(System.nanoTime() < end, "The second job did not run");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Keeps every loader thread busy with a tile of its own zoom level, so that the jobs queued next wait.
+     * @return the number of loader threads
+     */
+    private static int occupyAllLoaderThreads(BlockingArchive archive, AbstractSqliteTileLoader loader)
+            throws InterruptedException {
+        int threads = TileLoaderExecutor.getExecutor().getMaximumPoolSize();
+        for (int i = 0; i < threads; i++) {
+            loader.createTileLoaderJob(new Tile(SOURCE, 0, 0, ZOOM + 1 + i)).submit();
+        }
+        assertTrue(archive.started.tryAcquire(threads, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return threads;
+    }
+
+    private static AbstractSqliteTileLoader.SqliteTileJob job(AbstractSqliteTileLoader loader, Tile tile) {
+        return (AbstractSqliteTileLoader.SqliteTileJob) loader.createTileLoaderJob(tile);
+    }
+
+    private static void awaitLoaded(AbstractSqliteTileLoader... loaders) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        for (AbstractSqliteTileLoader loader : loaders) {
+            while (loader.hasOutstandingTasks()) {
+                assertTrue(System.nanoTime() < end, "Tiles are still loading");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Creates an archive with the given tiles at one zoom level, and one tile at (0, 0) of each
+     * zoom level above, see {@link #occupyAllLoaderThreads}.
+     * @param positions x and y of the tiles, in JOSM's tile numbering
+     */
+    private static File createDb(int zoom, int... positions) throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, zoom, zoom + 16);
+        byte[] png = encodePng();
+        for (int i = 0; i < positions.length; i += 2) {
+            MbtilesTestUtils.insertTile(dbFile, zoom, positions[i], (1 << zoom) - 1 - positions[i + 1], png);
+        }
+        for (int z = zoom + 1; z <= zoom + 16; z++) {
+            MbtilesTestUtils.insertTile(dbFile, z, 0, (1 << z) - 1, png);
+        }
+        return dbFile;
+    }
+
+    private static byte[] encodePng() throws IOException {
+        BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, 0xFF0000);
+        image.setRGB(1, 1, 0x00FF00);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Archive counting its reads. Single tile reads wait until {@link #release} is counted down,
+     * then fail if {@link #fail} is set.
+     */
+    private static final class BlockingArchive extends MbtilesArchive {
+        final AtomicInteger tileReads = new AtomicInteger();
+        final AtomicInteger rangeReads = new AtomicInteger();
+        final Semaphore started = new Semaphore(0);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean fail;
+
+        BlockingArchive(File file) throws SqliteException {
+            super(file, new ArchiveOptions());
+        }
+
+        @Override
+        public byte[] readTile(int zoom, int x, int y) throws SQLException {
+            tileReads.incrementAndGet();
+            started.release();
+            try {
+                if (!release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new SQLException("Not released");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+            if (fail) {
+                throw new SQLException("Broken archive");
+            }
+            return super.readTile(zoom, x, y);
+        }
+
+        @Override
+        public void readTiles(int zoom, int minX, int minY, int maxX, int maxY, TileDataConsumer consumer)
+                throws SQLException {
+            rangeReads.incrementAndGet();
+            super.readTiles(zoom, minX, minY, maxX, maxY, consumer);
+        }
+    }
+}
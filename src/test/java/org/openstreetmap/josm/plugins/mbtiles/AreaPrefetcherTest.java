@@ -0,0 +1,62 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class AreaPrefetcherTest {
+
+    private static final List<double[]> WORLD = Collections.singletonList(new double[] {-85, -180, 85, 180});
+
+    @Test
+    void boxesCoverEveryZoomLevel() {
+        List<int[]> positions = AreaPrefetcher.getPositions(WORLD, Collections.emptyList(), 0, 2, 0, 100);
+
+        assertEquals(1 + 4 + 16, positions.size());
+        assertArrayEquals(new int[] {0, 0, 0}, positions.get(0));
+        assertEquals(2, positions.get(positions.size() - 1)[0], "Lowest zoom level first");
+    }
+
+    @Test
+    void trackIsFollowedBetweenPoints() {
+        List<double[]> track = Arrays.asList(new double[] {10, -170}, new double[] {10, 170});
+
+        List<int[]> positions = AreaPrefetcher.getPositions(Collections.emptyList(),
+                Collections.singletonList(track), 2, 2, 0, 100);
+
+        assertEquals(new HashSet<>(Arrays.asList("2/0/1", "2/1/1", "2/2/1", "2/3/1")), keys(positions));
+    }
+
+    @Test
+    void bufferWidensTrack() {
+        List<double[]> track = Collections.singletonList(new double[] {10, 10});
+
+        List<int[]> positions = AreaPrefetcher.getPositions(Collections.emptyList(),
+                Collections.singletonList(track), 3, 3, 1, 100);
+
+        assertEquals(9, positions.size());
+        assertTrue(keys(positions).contains("3/3/2"));
+        assertTrue(keys(positions).contains("3/5/4"));
+    }
+
+    @Test
+    void zoomLevelsOverTheLimitAreLeftOut() {
+        List<int[]> positions = AreaPrefetcher.getPositions(WORLD, Collections.emptyList(), 0, 2, 0, 10);
+
+        assertEquals(1 + 4, positions.size());
+    }
+
+    private static Set<String> keys(List<int[]> positions) {
+        Set<String> keys = new HashSet<>();
+        for (int[] position : positions) {
+            keys.add(position[0] + "/" + position[1] + "/" + position[2]);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,237 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openstreetmap.josm.plugins.mbtiles.mbtiles.MbtilesArchive;
+
+/**
+ * Tests for the parameterized tile query of MbtilesArchive.
+ */
+class MbtilesArchiveTest {
+
+    @Test
+    void readTileInvertsY() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+        byte[] expectedData = MbtilesTestUtils.createMinimalPng();
+        // TMS row 3 at zoom 2 is JOSM row 0
+        MbtilesTestUtils.insertTile(dbFile, 2, 1, 3, expectedData);
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            assertArrayEquals(expectedData, archive.readTile(2, 1, 0));
+            // The cached statement must be reusable
+            assertArrayEquals(expectedData, archive.readTile(2, 1, 0));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    void missingTileReturnsNull() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            assertNull(archive.readTile(15, 999, 999));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    void readTilesReturnsEveryTileOfTheRectangle() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+        byte[] png = MbtilesTestUtils.createMinimalPng();
+        // TMS rows 3 and 2 at zoom 2 are JOSM rows 0 and 1
+        MbtilesTestUtils.insertTile(dbFile, 2, 1, 3, png);
+        MbtilesTestUtils.insertTile(dbFile, 2, 2, 2, png);
+        // outside of the rectangle
+        MbtilesTestUtils.insertTile(dbFile, 2, 3, 3, png);
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            Set<String> found = new HashSet<>();
+            archive.readTiles(2, 1, 0, 2, 1, (x, y, data) -> {
+                assertArrayEquals(png, data);
+                found.add(x + "/" + y);
+            });
+            assertEquals(new HashSet<>(Arrays.asList("1/0", "2/1")), found);
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    void concurrentReadsUseSeparateConnections() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+        byte[] expectedData = MbtilesTestUtils.createMinimalPng();
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            SqliteReadConnection held = archive.borrowConnection();
+            AtomicReference<Object> result = new AtomicReference<>();
+            Thread thread = new Thread(() -> {
+                try {
+                    result.set(archive.readTile(0, 0, 0));
+                } catch (Exception e) {
+                    result.set(e);
+                }
+            });
+            thread.start();
+            thread.join();
+            archive.releaseConnection(held);
+
+            assertTrue(result.get() instanceof byte[], "Read must not wait for the borrowed connection");
+            assertArrayEquals(expectedData, (byte[]) result.get());
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    void scanExtentsConvertsToJosmNumbering() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+        byte[] png = MbtilesTestUtils.createMinimalPng();
+        // TMS rows 3 and 2 at zoom 2 are JOSM rows 0 and 1
+        MbtilesTestUtils.insertTile(dbFile, 2, 1, 3, png);
+        MbtilesTestUtils.insertTile(dbFile, 2, 2, 2, png);
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            TileExtents extents = archive.scanExtents();
+            assertEquals(0, extents.getMinZoom());
+            assertEquals(2, extents.getMaxZoom());
+            assertArrayEquals(new int[] {1, 0, 2, 1}, extents.getExtent(2));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    void scansFailOnceArchiveIsClosed() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        archive.close();
+
+        assertTrue(archive.isClosed());
+        assertThrows(SQLException.class, archive::scanExtents);
+        assertThrows(SQLException.class, () -> archive.scanExistence(1024));
+    }
+
+    @Test
+    void scanExistenceIndexesEveryTile() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+        // TMS row 3 at zoom 2 is JOSM row 0
+        MbtilesTestUtils.insertTile(dbFile, 2, 1, 3, MbtilesTestUtils.createMinimalPng());
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            TileExistenceIndex index = archive.scanExistence(1024 * 1024);
+            assertTrue(index.contains(2, 1, 0));
+            assertFalse(index.contains(2, 1, 3));
+            assertNull(archive.scanExistence(0), "The index must not exceed its maximum size");
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    void readTileUsesRowidIndex() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+        byte[] png = MbtilesTestUtils.createMinimalPng();
+        // TMS row 3 at zoom 2 is JOSM row 0
+        MbtilesTestUtils.insertTile(dbFile, 2, 1, 3, png);
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            TileRowidIndex index = archive.scanRowids(1024 * 1024);
+            assertNotEquals(TileRowidIndex.NOT_FOUND, index.get(2, 1, 0));
+            assertEquals(TileRowidIndex.NOT_FOUND, index.get(2, 1, 3));
+
+            archive.requestRowidIndex(1024 * 1024);
+            TileLoaderExecutor.getBackgroundExecutor().submit(() -> { }).get();
+            assertArrayEquals(png, archive.readTile(2, 1, 0));
+            assertNull(archive.readTile(2, 1, 3));
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    void probeZoomRangeNeedsAnIndex() throws Exception {
+        File dbFile = MbtilesTestUtils.createTilesOnlyDb(3, 7);
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            assertNull(archive.probeZoomRange(), "Without an index the probe would scan the table");
+        } finally {
+            archive.close();
+        }
+
+        Class.forName("org.sqlite.JDBC");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+        }
+
+        archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            assertArrayEquals(new int[] {3, 7}, archive.probeZoomRange());
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    void probeZoomRangeNeedsTheZoomLevelFirstInTheIndex() throws Exception {
+        File dbFile = MbtilesTestUtils.createTilesOnlyDb(3, 7);
+        Class.forName("org.sqlite.JDBC");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE INDEX tile_xyz ON tiles (tile_column, tile_row, zoom_level)");
+        }
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            assertNull(archive.probeZoomRange());
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    void probeZoomRangeReadsTheMapTableOfDeduplicatedFiles(@TempDir File tempDir) throws Exception {
+        File dbFile = new File(tempDir, "dedup.mbtiles");
+        MbtilesWriter writer = new MbtilesWriter(dbFile, 4096, 10, 10, true);
+        writer.addTile(2, 1, 1, new byte[] {1});
+        writer.addTile(5, 3, 4, new byte[] {1});
+        writer.finish();
+        writer.close();
+
+        MbtilesArchive archive = new MbtilesArchive(dbFile, new ArchiveOptions());
+        try {
+            assertArrayEquals(new int[] {2, 5}, archive.probeZoomRange());
+        } finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    void nonexistentFileThrows() {
+        File nonexistent = new File("/nonexistent/deeply/nested/path/db.mbtiles");
+        assertThrows(SqliteException.class, () -> new MbtilesArchive(nonexistent, new ArchiveOptions()));
+    }
+}
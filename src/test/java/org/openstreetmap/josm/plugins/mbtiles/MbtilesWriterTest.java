@@ -0,0 +1,229 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MbtilesWriterTest {
+
+    @Test
+    void writesAllTilesAcrossBatchesAndCommits(@TempDir File tempDir) throws Exception {
+        File dbFile = new File(tempDir, "export.mbtiles");
+        byte[] png = MbtilesTestUtils.createMinimalPng();
+
+        // 3 tiles per batch and a commit every 6 tiles leaves a partial batch at the end
+        MbtilesWriter writer = new MbtilesWriter(dbFile, 4096, 3, 6, false);
+        writer.setMetadata("name", "test");
+        for (int x = 0; x < 10; x++) {
+            writer.addTile(4, x, 2, png);
+        }
+        writer.finish();
+        writer.close();
+        assertEquals(10, writer.getTileCount());
+
+        Connection conn = SqliteUtils.obtainSqliteDbConnection(dbFile, true);
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT count(*) FROM tiles WHERE zoom_level=4 AND tile_row=2");
+        assertTrue(rs.next());
+        assertEquals(10, rs.getInt(1));
+        rs.close();
+
+        rs = stmt.executeQuery("SELECT value FROM metadata WHERE name='name'");
+        assertTrue(rs.next());
+        assertEquals("test", rs.getString(1));
+        rs.close();
+
+        rs = stmt.executeQuery("PRAGMA page_size");
+        assertTrue(rs.next());
+        assertEquals(4096, rs.getInt(1));
+        rs.close();
+        stmt.close();
+        conn.close();
+    }
+
+    @Test
+    void deduplicatedExportStoresIdenticalTilesOnce(@TempDir File tempDir) throws Exception {
+        File dbFile = new File(tempDir, "export.mbtiles");
+        byte[] png = MbtilesTestUtils.createMinimalPng();
+        byte[] other = {1, 2, 3};
+
+        MbtilesWriter writer = new MbtilesWriter(dbFile, 4096, 2, 4, true);
+        for (int x = 0; x < 5; x++) {
+            writer.addTile(4, x, 2, png);
+        }
+        writer.addTile(4, 5, 2, other);
+        writer.finish();
+        writer.close();
+        assertEquals(6, writer.getTileCount());
+        assertEquals(2, writer.getImageCount());
+
+        Connection conn = SqliteUtils.obtainSqliteDbConnection(dbFile, true);
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT count(*) FROM images");
+        assertTrue(rs.next());
+        assertEquals(2, rs.getInt(1));
+        rs.close();
+
+        // Readers keep using the tiles view
+        rs = stmt.executeQuery("SELECT tile_data FROM tiles WHERE zoom_level=4 AND tile_column=5 AND tile_row=2");
+        assertTrue(rs.next());
+        assertArrayEquals(other, rs.getBytes(1));
+        rs.close();
+
+        rs = stmt.executeQuery("SELECT count(*) FROM tiles");
+        assertTrue(rs.next());
+        assertEquals(6, rs.getInt(1));
+        rs.close();
+        stmt.close();
+        conn.close();
+    }
+
+    @Test
+    void duplicateTilesKeepLastWrittenTile(@TempDir File tempDir) throws Exception {
+        File dbFile = new File(tempDir, "export.mbtiles");
+        byte[] first = {1, 2, 3};
+        byte[] second = {4, 5, 6};
+
+        // e.g. two cache entries of one layer whose URL changed
+        MbtilesWriter writer = new MbtilesWriter(dbFile, 4096, 10, 10, false);
+        writer.addTile(4, 1, 2, first);
+        writer.addTile(4, 3, 2, first);
+        writer.addTile(4, 1, 2, second);
+        writer.finish();
+        writer.close();
+        assertEquals(2, writer.getTileCount());
+
+        Connection conn = SqliteUtils.obtainSqliteDbConnection(dbFile, true);
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT tile_data FROM tiles WHERE zoom_level=4 AND tile_column=1 AND tile_row=2");
+        assertTrue(rs.next());
+        assertArrayEquals(second, rs.getBytes(1));
+        assertFalse(rs.next());
+        rs.close();
+        stmt.close();
+        conn.close();
+    }
+
+    @Test
+    void deduplicatedDuplicateTilesKeepLastWrittenTile(@TempDir File tempDir) throws Exception {
+        File dbFile = new File(tempDir, "export.mbtiles");
+        byte[] first = {1, 2, 3};
+        byte[] second = {4, 5, 6};
+
+        MbtilesWriter writer = new MbtilesWriter(dbFile, 4096, 10, 10, true);
+        writer.addTile(4, 1, 2, first);
+        writer.addTile(4, 1, 2, second);
+        writer.finish();
+        writer.close();
+        assertEquals(1, writer.getTileCount());
+        assertEquals(1, writer.getImageCount());
+
+        Connection conn = SqliteUtils.obtainSqliteDbConnection(dbFile, true);
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT tile_data FROM tiles WHERE zoom_level=4 AND tile_column=1 AND tile_row=2");
+        assertTrue(rs.next());
+        assertArrayEquals(second, rs.getBytes(1));
+        assertFalse(rs.next());
+        rs.close();
+        rs = stmt.executeQuery("SELECT count(*) FROM images");
+        assertTrue(rs.next());
+        assertEquals(1, rs.getInt(1), "The image no tile refers to any more is removed");
+        rs.close();
+        stmt.close();
+        conn.close();
+    }
+
+    @Test
+    void finishBuildsIndexAndStatistics(@TempDir File tempDir) throws Exception {
+        File dbFile = new File(tempDir, "export.mbtiles");
+
+        MbtilesWriter writer = new MbtilesWriter(dbFile, 4096, 10, 10, false);
+        for (int x = 0; x < 20; x++) {
+            writer.addTile(5, x, 7, new byte[] {(byte) x});
+        }
+        writer.finish();
+        writer.close();
+
+        Connection conn = SqliteUtils.obtainSqliteDbConnection(dbFile, true);
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("EXPLAIN QUERY PLAN SELECT tile_data FROM tiles"
+                + " WHERE zoom_level=5 AND tile_column=3 AND tile_row=7");
+        assertTrue(rs.next());
+        assertTrue(rs.getString("detail").contains("tile_index"), "Point lookups must use the index");
+        rs.close();
+
+        rs = stmt.executeQuery("SELECT count(*) FROM sqlite_stat1");
+        assertTrue(rs.next());
+        assertTrue(rs.getInt(1) > 0, "ANALYZE must have run");
+        rs.close();
+        stmt.close();
+        conn.close();
+    }
+
+    @Test
+    void vacuumIntoWritesCompleteCopy(@TempDir File tempDir) throws Exception {
+        File dbFile = new File(tempDir, "export.mbtiles.tmp");
+        File target = new File(tempDir, "export.mbtiles");
+
+        MbtilesWriter writer = new MbtilesWriter(dbFile, 4096, 10, 10, false);
+        for (int x = 0; x < 20; x++) {
+            writer.addTile(5, x, 7, new byte[] {(byte) x});
+        }
+        writer.finish();
+        writer.vacuumInto(target);
+        writer.close();
+
+        Connection conn = SqliteUtils.obtainSqliteDbConnection(target, true);
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT count(*) FROM tiles");
+        assertTrue(rs.next());
+        assertEquals(20, rs.getInt(1));
+        rs.close();
+        stmt.close();
+        conn.close();
+    }
+
+    @Test
+    void finishWritesComputedMetadata(@TempDir File tempDir) throws Exception {
+        File dbFile = new File(tempDir, "export.mbtiles");
+        byte[] png = MbtilesTestUtils.createMinimalPng();
+
+        MbtilesWriter writer = new MbtilesWriter(dbFile, 4096, 10, 10, false);
+        // TMS rows: row 1 at zoom 1 is the northern half, i.e. JOSM y 0
+        writer.addTile(1, 0, 1, png);
+        writer.addTile(2, 1, 2, png);
+        writer.addTile(2, 2, 1, png);
+        writer.finish();
+        writer.close();
+
+        Map<String, String> metadata = new HashMap<>();
+        Connection conn = SqliteUtils.obtainSqliteDbConnection(dbFile, true);
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT name, value FROM metadata");
+        while (rs.next()) {
+            metadata.put(rs.getString(1), rs.getString(2));
+        }
+        rs.close();
+        stmt.close();
+        conn.close();
+
+        assertEquals("png", metadata.get("format"));
+        assertEquals("1", metadata.get("minzoom"));
+        assertEquals("2", metadata.get("maxzoom"));
+        assertEquals("1/0/0/0/0;2/1/1/2/2", metadata.get("tile_extents"));
+        // zoom 1 tile (0, 0) covers the north-west quarter of the world
+        String[] bounds = metadata.get("bounds").split(",");
+        assertEquals(-180, Double.parseDouble(bounds[0]), 1e-6);
+        assertEquals(90, Double.parseDouble(bounds[2]), 1e-6);
+        assertTrue(Double.parseDouble(bounds[3]) > 85);
+        assertNotNull(metadata.get("center"));
+    }
+}
@@ -0,0 +1,60 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MissingTileCacheTest {
+
+    @Test
+    void missingTilesExpire(@TempDir File tempDir) throws Exception {
+        File file = new File(tempDir, "a.mbtiles");
+        Files.write(file.toPath(), new byte[] {1});
+        AtomicLong now = new AtomicLong();
+        MissingTileCache cache = new MissingTileCache(file, 10, 1000, now::get);
+
+        cache.add(12, 5, 7);
+        assertTrue(cache.isMissing(12, 5, 7));
+        assertFalse(cache.isMissing(12, 7, 5));
+
+        now.addAndGet(999_000_000L);
+        assertTrue(cache.isMissing(12, 5, 7));
+        now.addAndGet(2_000_000L);
+        assertFalse(cache.isMissing(12, 5, 7));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void oldestEntriesAreDroppedFirst(@TempDir File tempDir) throws Exception {
+        File file = new File(tempDir, "a.mbtiles");
+        Files.write(file.toPath(), new byte[] {1});
+        MissingTileCache cache = new MissingTileCache(file, 2, 60000, () -> 0L);
+
+        cache.add(3, 0, 0);
+        cache.add(3, 0, 1);
+        cache.add(3, 0, 2);
+
+        assertEquals(2, cache.size());
+        assertFalse(cache.isMissing(3, 0, 0));
+        assertTrue(cache.isMissing(3, 0, 2));
+    }
+
+    @Test
+    void changedFileClearsTheCache(@TempDir File tempDir) throws Exception {
+        File file = new File(tempDir, "a.mbtiles");
+        Files.write(file.toPath(), new byte[] {1});
+        AtomicLong now = new AtomicLong();
+        MissingTileCache cache = new MissingTileCache(file, 10, 60000, now::get);
+        cache.add(3, 0, 0);
+
+        Files.write(file.toPath(), new byte[] {1, 2});
+        now.addAndGet(2_000_000_000L);
+
+        assertFalse(cache.isMissing(3, 0, 0));
+    }
+}
@@ -0,0 +1,60 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class SharedImageCacheTest {
+
+    @Test
+    void identicalBytesShareImage() {
+        SharedImageCache cache = new SharedImageCache(100, 10);
+        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        cache.put(ByteBuffer.wrap(new byte[] {1, 2, 3}), image);
+
+        ByteBuffer other = ByteBuffer.allocateDirect(4);
+        other.put(new byte[] {0, 1, 2, 3});
+        other.position(1);
+        assertSame(image, cache.get(other));
+        assertEquals(1, other.position(), "The buffer must not be consumed");
+        assertNull(cache.get(ByteBuffer.wrap(new byte[] {1, 2, 4})));
+    }
+
+    @Test
+    void largeTilesAreNotShared() {
+        SharedImageCache cache = new SharedImageCache(2, 10);
+        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        cache.put(ByteBuffer.wrap(new byte[] {1, 2, 3}), image);
+
+        assertNull(cache.get(ByteBuffer.wrap(new byte[] {1, 2, 3})));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void leastRecentlyUsedContentsAreEvicted() {
+        SharedImageCache cache = new SharedImageCache(100, 2);
+        BufferedImage a = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        BufferedImage b = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        BufferedImage c = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        cache.put(ByteBuffer.wrap(new byte[] {1}), a);
+        cache.put(ByteBuffer.wrap(new byte[] {2}), b);
+        cache.get(ByteBuffer.wrap(new byte[] {1}));
+        cache.put(ByteBuffer.wrap(new byte[] {3}), c);
+
+        assertEquals(2, cache.size());
+        assertSame(a, cache.get(ByteBuffer.wrap(new byte[] {1})));
+        assertNull(cache.get(ByteBuffer.wrap(new byte[] {2})));
+        assertSame(c, cache.get(ByteBuffer.wrap(new byte[] {3})));
+    }
+
+    @Test
+    void disabledCacheKeepsNothing() {
+        SharedImageCache cache = new SharedImageCache(0, 10);
+        cache.put(ByteBuffer.wrap(new byte[] {1}), new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+
+        assertEquals(0, cache.size());
+    }
+}
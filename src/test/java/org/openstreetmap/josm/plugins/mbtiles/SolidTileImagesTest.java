@@ -0,0 +1,79 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+class SolidTileImagesTest {
+
+    @Test
+    void singleEntryPaletteIsRecognizedFromHeader() throws Exception {
+        byte[] png = encodePalette(new byte[] {0x12}, new byte[] {0x34}, new byte[] {0x56}, null);
+
+        assertArrayEquals(new int[] {4, 3, 0xFF123456}, SolidTileImages.parseSolidPng(ByteBuffer.wrap(png)));
+    }
+
+    @Test
+    void transparentPaletteEntryGivesTransparentColour() throws Exception {
+        byte[] png = encodePalette(new byte[] {1}, new byte[] {2}, new byte[] {3}, new byte[] {0});
+
+        assertArrayEquals(new int[] {4, 3, 0}, SolidTileImages.parseSolidPng(ByteBuffer.wrap(png)));
+    }
+
+    @Test
+    void largerPaletteNeedsDecoding() throws Exception {
+        byte[] png = encodePalette(new byte[] {1, 2}, new byte[] {1, 2}, new byte[] {1, 2}, null);
+
+        assertNull(SolidTileImages.parseSolidPng(ByteBuffer.wrap(png)));
+        assertNull(SolidTileImages.parseSolidPng(ByteBuffer.wrap(new byte[] {1, 2, 3})));
+    }
+
+    @Test
+    void corruptChunkLengthsAreRejected() throws Exception {
+        byte[] png = encodePalette(new byte[] {1}, new byte[] {2}, new byte[] {3}, null);
+        ByteBuffer badHeader = ByteBuffer.wrap(png.clone());
+        badHeader.putInt(8, -100);
+        ByteBuffer badChunk = ByteBuffer.wrap(png.clone());
+        badChunk.putInt(8 + 25, Integer.MAX_VALUE - 4);
+
+        assertNull(SolidTileImages.parseSolidPng(badHeader));
+        assertNull(SolidTileImages.parseSolidPng(badChunk));
+    }
+
+    @Test
+    void solidImagesShareOneImage() {
+        BufferedImage a = new BufferedImage(2, 2, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage b = new BufferedImage(2, 2, BufferedImage.TYPE_INT_ARGB);
+        b.setRGB(1, 1, 0x00FF0000);
+
+        BufferedImage shared = SolidTileImages.share(a);
+        assertNotSame(a, shared);
+        assertSame(shared, SolidTileImages.share(b), "Fully transparent pixels are alike whatever their colour");
+        assertEquals(0, shared.getRGB(1, 1));
+    }
+
+    @Test
+    void imagesWithSeveralColoursAreKept() {
+        BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(1, 1, 0xFFFFFF);
+
+        assertSame(image, SolidTileImages.share(image));
+    }
+
+    private static byte[] encodePalette(byte[] r, byte[] g, byte[] b, byte[] a) throws IOException {
+        IndexColorModel model = a == null ? new IndexColorModel(1, r.length, r, g, b)
+                : new IndexColorModel(1, r.length, r, g, b, a);
+        BufferedImage image = new BufferedImage(4, 3, BufferedImage.TYPE_BYTE_BINARY, model);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,84 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+class SqliteConnectionPoolTest {
+
+    @Test
+    void connectionsAreReused() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+        SqliteConnectionPool pool = new SqliteConnectionPool(dbFile, 2, new ArchiveOptions().getReadPragmas());
+
+        SqliteReadConnection first = pool.borrow();
+        pool.release(first);
+        assertSame(first, pool.borrow());
+        pool.release(first);
+        pool.close();
+        assertTrue(first.getConnection().isClosed());
+    }
+
+    @Test
+    void pragmasAreApplied() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+        ArchiveOptions options = new ArchiveOptions();
+        options.setCacheSize(1234);
+        SqliteConnectionPool pool = new SqliteConnectionPool(dbFile, 1, options.getReadPragmas());
+
+        SqliteReadConnection conn = pool.borrow();
+        try (Statement stmt = conn.getConnection().createStatement()) {
+            ResultSet rs = stmt.executeQuery("PRAGMA cache_size");
+            assertTrue(rs.next());
+            assertEquals(-1234, rs.getInt(1));
+            rs.close();
+
+            rs = stmt.executeQuery("PRAGMA query_only");
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+            rs.close();
+        } finally {
+            pool.release(conn);
+            pool.close();
+        }
+    }
+
+    @Test
+    void borrowWaitsWhenPoolIsExhausted() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+        SqliteConnectionPool pool = new SqliteConnectionPool(dbFile, 1, new ArchiveOptions().getReadPragmas());
+
+        SqliteReadConnection held = pool.borrow();
+        AtomicReference<SqliteReadConnection> borrowed = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                borrowed.set(pool.borrow());
+            } catch (SqliteException e) {
+                fail(e);
+            }
+        });
+        thread.start();
+        thread.join(300);
+        assertNull(borrowed.get(), "No second connection may be opened");
+
+        pool.release(held);
+        thread.join();
+        assertSame(held, borrowed.get());
+        pool.release(held);
+        pool.close();
+    }
+
+    @Test
+    void closedPoolThrows() throws Exception {
+        File dbFile = MbtilesTestUtils.createTestMbtilesDb("test", null, 0, 2);
+        SqliteConnectionPool pool = new SqliteConnectionPool(dbFile, 1, new ArchiveOptions().getReadPragmas());
+        pool.close();
+
+        assertThrows(SqliteException.class, pool::borrow);
+    }
+}
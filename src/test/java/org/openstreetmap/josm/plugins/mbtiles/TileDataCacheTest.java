@@ -0,0 +1,93 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class TileDataCacheTest {
+
+    @Test
+    void returnsCachedBytes() {
+        TileDataCache cache = new TileDataCache(1024);
+        byte[] data = {1, 2, 3};
+        cache.put("/a.mbtiles", 3, 1, 2, data);
+
+        assertArrayEquals(data, bytes(cache.getBuffer("/a.mbtiles", 3, 1, 2)));
+        data[0] = 42;
+        assertEquals(1, cache.getBuffer("/a.mbtiles", 3, 1, 2).get(0), "The cache keeps its own copy");
+    }
+
+    @Test
+    void bufferIsReadOnlyView() {
+        TileDataCache cache = new TileDataCache(1024);
+        cache.put("/a.mbtiles", 3, 1, 2, new byte[] {1, 2, 3});
+
+        ByteBuffer buffer = cache.getBuffer("/a.mbtiles", 3, 1, 2);
+        assertTrue(buffer.isReadOnly());
+        assertEquals(3, buffer.remaining());
+        buffer.get();
+        assertEquals(3, cache.getBuffer("/a.mbtiles", 3, 1, 2).remaining(), "Each caller gets its own position");
+        assertNull(cache.getBuffer("/b.mbtiles", 3, 1, 2));
+    }
+
+    @Test
+    void tilesAreKeyedByFile() {
+        TileDataCache cache = new TileDataCache(1024);
+        cache.put("/a.mbtiles", 3, 1, 2, new byte[] {1});
+
+        assertNull(cache.getBuffer("/b.mbtiles", 3, 1, 2));
+        assertNull(cache.getBuffer("/a.mbtiles", 4, 1, 2));
+    }
+
+    @Test
+    void leastRecentlyUsedTilesAreEvicted() {
+        TileDataCache cache = new TileDataCache(20);
+        cache.put("/a.mbtiles", 1, 0, 0, new byte[8]);
+        cache.put("/a.mbtiles", 1, 0, 1, new byte[8]);
+        // touch the first tile so that the second one is the eldest
+        assertNotNull(cache.getBuffer("/a.mbtiles", 1, 0, 0));
+        cache.put("/a.mbtiles", 1, 1, 0, new byte[8]);
+
+        assertNotNull(cache.getBuffer("/a.mbtiles", 1, 0, 0));
+        assertNull(cache.getBuffer("/a.mbtiles", 1, 0, 1));
+        assertNotNull(cache.getBuffer("/a.mbtiles", 1, 1, 0));
+        assertEquals(16, cache.getUsedBytes());
+    }
+
+    @Test
+    void replacingTileKeepsAccountingRight() {
+        TileDataCache cache = new TileDataCache(100);
+        cache.put("/a.mbtiles", 1, 0, 0, new byte[10]);
+        cache.put("/a.mbtiles", 1, 0, 0, new byte[30]);
+
+        assertEquals(30, cache.getUsedBytes());
+    }
+
+    @Test
+    void invalidateRemovesOneFile() {
+        TileDataCache cache = new TileDataCache(100);
+        cache.put("/a.mbtiles", 1, 0, 0, new byte[10]);
+        cache.put("/b.mbtiles", 1, 0, 0, new byte[10]);
+        cache.invalidate("/a.mbtiles");
+
+        assertNull(cache.getBuffer("/a.mbtiles", 1, 0, 0));
+        assertNotNull(cache.getBuffer("/b.mbtiles", 1, 0, 0));
+        assertEquals(10, cache.getUsedBytes());
+    }
+
+    @Test
+    void disabledCacheKeepsNothing() {
+        TileDataCache cache = new TileDataCache(0);
+        cache.put("/a.mbtiles", 1, 0, 0, new byte[10]);
+
+        assertNull(cache.getBuffer("/a.mbtiles", 1, 0, 0));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+}
@@ -0,0 +1,81 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+class TileDecoderTest {
+
+    @Test
+    void decodesPngAndJpeg() throws Exception {
+        BufferedImage png = TileDecoder.decode(encode("png"));
+        BufferedImage jpeg = TileDecoder.decode(encode("jpg"));
+
+        assertEquals(2, png.getWidth());
+        assertEquals(0xFFFF0000, png.getRGB(0, 0));
+        assertEquals(2, jpeg.getHeight());
+    }
+
+    @Test
+    void readerIsReplacedAfterCorruptImage() throws Exception {
+        byte[] png = encode("png");
+
+        assertThrows(IOException.class, () -> TileDecoder.decode(Arrays.copyOf(png, png.length / 2)));
+        assertEquals(0xFFFF0000, TileDecoder.decode(png).getRGB(1, 1));
+        assertEquals(0xFFFF0000, TileDecoder.decode(png).getRGB(1, 1));
+    }
+
+    @Test
+    void decodesInPlaceFromDirectBuffer() throws Exception {
+        byte[] png = encode("png");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(png.length + 3);
+        buffer.put(new byte[] {9, 9, 9}).put(png);
+        buffer.position(3);
+
+        assertEquals(0xFFFF0000, TileDecoder.decode(buffer).getRGB(0, 1));
+        assertEquals(3, buffer.position(), "The buffer must not be consumed");
+    }
+
+    @Test
+    void unknownFormatIsRejected() {
+        assertThrows(IOException.class, () -> TileDecoder.decode(new byte[] {1, 2, 3, 4}));
+    }
+
+    @Test
+    void compatibleImagesAreIntRgbOrPremultiplied() {
+        BufferedImage bgr = new BufferedImage(2, 2, BufferedImage.TYPE_3BYTE_BGR);
+        bgr.setRGB(1, 0, 0x123456);
+        BufferedImage argb = new BufferedImage(2, 2, BufferedImage.TYPE_INT_ARGB);
+        argb.setRGB(0, 1, 0x80FF0000);
+
+        BufferedImage opaque = TileDecoder.toCompatible(bgr, null);
+        BufferedImage translucent = TileDecoder.toCompatible(argb, null);
+
+        assertEquals(BufferedImage.TYPE_INT_RGB, opaque.getType());
+        assertEquals(0xFF123456, opaque.getRGB(1, 0));
+        assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, translucent.getType());
+        assertEquals(0x80, translucent.getRGB(0, 1) >>> 24);
+        assertEquals(0, translucent.getRGB(1, 1));
+        assertSame(opaque, TileDecoder.toCompatible(opaque, null), "Images of the right type are kept");
+    }
+
+    private static byte[] encode(String format) throws IOException {
+        BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 2; x++) {
+            for (int y = 0; y < 2; y++) {
+                image.setRGB(x, y, 0xFF0000);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,36 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class TileExistenceIndexTest {
+
+    @Test
+    void containsOnlyAddedTiles() {
+        TileExistenceIndex index = new TileExistenceIndex();
+        index.add(12, 63, 64);
+        index.add(18, 200000, 100000);
+
+        assertTrue(index.contains(12, 63, 64));
+        assertTrue(index.contains(18, 200000, 100000));
+        assertFalse(index.contains(12, 64, 64));
+        assertFalse(index.contains(12, 63, 63));
+        assertFalse(index.contains(13, 63, 64));
+        assertFalse(index.contains(31, 0, 0));
+    }
+
+    @Test
+    void blocksAreAllocatedOnlyWhereTilesExist() {
+        TileExistenceIndex index = new TileExistenceIndex();
+        for (int x = 0; x < 64; x++) {
+            index.add(10, x, 5);
+        }
+        index.add(10, 0, 5);
+        assertEquals(64, index.getTileCount());
+        assertEquals(512, index.getMemoryBytes());
+
+        index.add(10, 64, 5);
+        assertEquals(1024, index.getMemoryBytes());
+    }
+}
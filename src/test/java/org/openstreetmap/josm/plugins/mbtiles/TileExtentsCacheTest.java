@@ -0,0 +1,42 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TileExtentsCacheTest {
+
+    @Test
+    void storedExtentsAreReadBack(@TempDir File tempDir) throws Exception {
+        File archive = new File(tempDir, "a.mbtiles");
+        Files.write(archive.toPath(), new byte[] {1, 2, 3});
+        TileExtents extents = new TileExtents();
+        extents.add(4, 3, 5);
+
+        TileExtentsCache cache = new TileExtentsCache(new File(tempDir, "cache"));
+        assertNull(cache.get(archive));
+        cache.put(archive, extents);
+
+        TileExtents stored = new TileExtentsCache(new File(tempDir, "cache")).get(archive);
+        assertNotNull(stored);
+        assertEquals(extents.toString(), stored.toString());
+    }
+
+    @Test
+    void changedArchiveIsIgnored(@TempDir File tempDir) throws Exception {
+        File archive = new File(tempDir, "a.mbtiles");
+        Files.write(archive.toPath(), new byte[] {1, 2, 3});
+        TileExtents extents = new TileExtents();
+        extents.add(4, 3, 5);
+
+        TileExtentsCache cache = new TileExtentsCache(new File(tempDir, "cache"));
+        cache.put(archive, extents);
+        Files.write(archive.toPath(), new byte[] {1, 2, 3, 4});
+
+        assertNull(cache.get(archive));
+    }
+}
@@ -0,0 +1,69 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class TileExtentsTest {
+
+    @Test
+    void addGrowsExtentPerZoom() {
+        TileExtents extents = new TileExtents();
+        extents.add(3, 5, 2);
+        extents.add(3, 1, 6);
+        extents.add(7, 40, 40);
+
+        assertEquals(3, extents.getMinZoom());
+        assertEquals(7, extents.getMaxZoom());
+        assertArrayEquals(new int[] {1, 2, 5, 6}, extents.getExtent(3));
+        assertNull(extents.getExtent(4));
+    }
+
+    @Test
+    void serializationRoundTrips() {
+        TileExtents extents = new TileExtents();
+        extents.add(3, 5, 2);
+        extents.add(4, 10, 11);
+
+        TileExtents parsed = TileExtents.parse(extents.toString());
+        assertEquals("3/5/2/5/2;4/10/11/10/11", parsed.toString());
+    }
+
+    @Test
+    void parseRejectsGarbage() {
+        assertThrows(IllegalArgumentException.class, () -> TileExtents.parse("3/5/2"));
+        assertTrue(TileExtents.parse("").isEmpty());
+    }
+
+    @Test
+    void boundsOfWholeWorld() {
+        TileExtents extents = new TileExtents();
+        extents.add(0, 0, 0);
+
+        double[] bounds = extents.getBounds();
+        assertEquals(-180, bounds[0], 1e-9);
+        assertEquals(180, bounds[2], 1e-9);
+        assertEquals(-bounds[1], bounds[3], 1e-9);
+    }
+
+    @Test
+    void boundsOfEasternTilesAtHighZoomLevels() {
+        TileExtents extents = new TileExtents();
+        // East of Greenwich at zoom level 24, and the last column of zoom level 23
+        extents.add(24, 1 << 23, 1 << 23);
+        extents.add(23, (1 << 23) - 1, 1 << 22);
+
+        double[] bounds = extents.getBounds();
+        assertEquals(0, bounds[0], 1e-9);
+        assertEquals(180, bounds[2], 1e-9);
+        assertTrue(bounds[1] < 0 && bounds[3] <= 0 && bounds[1] < bounds[3]);
+    }
+
+    @Test
+    void formatIsDetectedFromMagicBytes() throws Exception {
+        assertEquals(TileFormat.PNG, TileFormat.detect(MbtilesTestUtils.createMinimalPng()));
+        assertEquals(TileFormat.JPG, TileFormat.detect(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0}));
+        assertEquals(TileFormat.WEBP, TileFormat.detect("RIFF\0\0\0\0WEBPVP8 ".getBytes("US-ASCII")));
+        assertNull(TileFormat.detect(new byte[] {1, 2}));
+    }
+}
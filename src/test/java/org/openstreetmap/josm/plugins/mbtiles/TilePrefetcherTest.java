@@ -0,0 +1,55 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class TilePrefetcherTest {
+
+    @Test
+    void ringSurroundsTheView() {
+        List<int[]> positions = new TilePrefetcher(1, false, 100).getPositions(4, 5, 5, 6, 6);
+
+        Set<String> keys = keys(positions);
+        assertEquals(12, keys.size());
+        assertTrue(keys.contains("4/4/4"));
+        assertTrue(keys.contains("4/7/7"));
+        assertTrue(keys.contains("4/4/6"));
+        assertFalse(keys.contains("4/5/5"), "Tiles of the view are loaded by the layer");
+    }
+
+    @Test
+    void ringStopsAtTheEdgeOfTheWorld() {
+        List<int[]> positions = new TilePrefetcher(1, false, 100).getPositions(1, 0, 0, 0, 0);
+
+        assertEquals(new HashSet<>(Arrays.asList("1/1/0", "1/0/1", "1/1/1")), keys(positions));
+    }
+
+    @Test
+    void parentAndChildTilesFollowTheRing() {
+        List<int[]> positions = new TilePrefetcher(1, true, 100).getPositions(4, 5, 5, 5, 5);
+
+        assertEquals(8 + 1 + 4, positions.size());
+        assertArrayEquals(new int[] {3, 2, 2}, positions.get(8));
+        assertArrayEquals(new int[] {5, 10, 10}, positions.get(9));
+        assertArrayEquals(new int[] {5, 11, 11}, positions.get(12));
+    }
+
+    @Test
+    void numberOfTilesIsCapped() {
+        assertEquals(3, new TilePrefetcher(2, true, 3).getPositions(10, 100, 100, 120, 120).size());
+    }
+
+    private static Set<String> keys(List<int[]> positions) {
+        Set<String> keys = new HashSet<>();
+        for (int[] p : positions) {
+            keys.add(p[0] + "/" + p[1] + "/" + p[2]);
+        }
+        return keys;
+    }
+}
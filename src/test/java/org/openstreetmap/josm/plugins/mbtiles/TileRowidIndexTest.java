@@ -0,0 +1,43 @@
+package org.openstreetmap.josm.plugins.mbtiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class TileRowidIndexTest {
+
+    @Test
+    void returnsRowidOfAddedTiles() {
+        TileRowidIndex index = new TileRowidIndex(1024 * 1024);
+        assertTrue(index.put(0, 0, 0, 7));
+        assertTrue(index.put(18, 131072, 87000, 42));
+
+        assertEquals(7, index.get(0, 0, 0));
+        assertEquals(42, index.get(18, 131072, 87000));
+        assertEquals(TileRowidIndex.NOT_FOUND, index.get(18, 87000, 131072));
+        assertEquals(TileRowidIndex.NOT_FOUND, index.get(30, 0, 0));
+    }
+
+    @Test
+    void growsWithoutLosingTiles() {
+        TileRowidIndex index = new TileRowidIndex(16 * 1024 * 1024);
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(index.put(17, i % 300, i / 300, i));
+        }
+        assertEquals(100000, index.size());
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(i, index.get(17, i % 300, i / 300));
+        }
+    }
+
+    @Test
+    void refusesToExceedItsMaximumSize() {
+        TileRowidIndex index = new TileRowidIndex(16 * 1024);
+        boolean added = true;
+        for (int i = 0; i < 10000 && added; i++) {
+            added = index.put(10, i, 0, i);
+        }
+        assertFalse(added);
+        assertTrue(index.getMemoryBytes() <= 16 * 1024);
+    }
+}
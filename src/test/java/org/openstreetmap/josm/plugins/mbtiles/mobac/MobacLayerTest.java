@@ -9,6 +9,8 @@ import java.sql.ResultSet;
 import java.sql.Statement;
 
 import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.plugins.mbtiles.ArchiveOptions;
+import org.openstreetmap.josm.plugins.mbtiles.TileExtents;
 import org.sqlite.SQLiteConfig;
 
 /**
@@ -82,6 +84,24 @@ class MobacLayerTest {
         conn.close();
     }
 
+    @Test
+    void extentsScanConvertsMobacZoom() throws Exception {
+        File dbFile = MobacTestUtils.createMobacDb(5, 5);
+        byte[] png = new byte[]{1};
+        MobacTestUtils.insertTile(dbFile, 5, 100, 200, png);
+        MobacTestUtils.insertTile(dbFile, 5, 110, 210, png);
+
+        MobacArchive archive = new MobacArchive(dbFile, new ArchiveOptions());
+        try {
+            TileExtents extents = archive.scanExtents();
+            // Mobac zoom 5 is standard zoom 12, y is not inverted
+            assertArrayEquals(new int[]{0, 0, 110, 210}, extents.getExtent(12));
+            assertEquals(12, extents.getMaxZoom());
+        } finally {
+            archive.close();
+        }
+    }
+
     @Test
     void emptyInfoTableThrows() throws Exception {
         File tempFile = File.createTempFile("test-mobac-empty-", ".sqlitedb");